@@ -0,0 +1,9 @@
+#!/bin/bash
+
+set -e
+
+# Change the current working directory to the location of the present file
+cd "$( cd "$( dirname "${BASH_SOURCE[0]}" )" >/dev/null 2>&1 && pwd )"
+
+# Builds target/benchmarks.jar, extra arguments go to mvn (run with: java -jar target/benchmarks.jar [regexp] [-p param=values])
+mvn clean package "$@"
@@ -0,0 +1,81 @@
+package cs451;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LCausal delivery: process 1 receives the m messages of every other process from URB and drains its pending
+ * buffers (one invocation is the whole stream)
+ * Processes 2..N are in a ring, each influenced by the previous one: message lsn of a process waits for message
+ * lsn-1 of the previous one. URB delivers the messages shuffled in blocks of reorder messages,
+ * so they wait in the pending buffers until what they depend on is delivered
+ * The stack runs in event loop mode over the simulated network, so no thread is started
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dcs451.eventloop=true", "-Dcs451.transport=sim"})
+@State(Scope.Thread)
+public class LCausalBenchmark {
+    @Param({"3", "16", "128"})
+    private int n; // Number of processes
+    @Param({"10000"})
+    private int m; // Number of messages broadcast by each process
+    @Param({"1", "1024"})
+    private int reorder; // Size of the blocks of messages shuffled
+    @Param({"1024"})
+    private int batch; // Messages drained from URB at a time
+
+    private List<Host> hosts; // Hosts of the processes
+    private List<List<MessagePacket>> batches; // Messages delivered by URB, by batch
+    private LCausal lCausal; // LCausal of process 1
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        hosts = new ArrayList<>();
+        for (int i = 1; i <= n; i++) {
+            Host host = new Host();
+            host.populate(Integer.toString(i), "127.0.0.1", Integer.toString(11000 + i));
+            hosts.add(host);
+        }
+        // Messages in the order they are broadcast (round by round), with the dependency on the previous process
+        List<MessagePacket> delivered = new ArrayList<>();
+        for (int lsn = 1; lsn <= m; lsn++) {
+            for (int pid = 2; pid <= n; pid++) {
+                int previous = pid == 2 ? n : pid - 1;
+                int[] W = lsn == 1 || previous == pid ? new int[]{pid, lsn} : new int[]{pid, lsn, previous, lsn - 1};
+                delivered.add(new MessagePacket(pid, lsn, W));
+            }
+        }
+        // Shuffle every block (seeded, so every run delivers in the same order)
+        Random random = new Random(42);
+        for (int i = 0; i < delivered.size(); i += reorder)
+            Collections.shuffle(delivered.subList(i, Math.min(i + reorder, delivered.size())), random);
+        batches = new ArrayList<>();
+        for (int i = 0; i < delivered.size(); i += batch)
+            batches.add(delivered.subList(i, Math.min(i + batch, delivered.size())));
+    }
+
+    @Setup(Level.Invocation)
+    public void setupInvocation() throws IOException {
+        // Nothing is broadcast, so no output log is needed (and nothing is recorded)
+        lCausal = new LCausal(hosts, 1, new LinkedBlockingQueue<>(), null, null, new BenchmarkRecorder(n, m, 0),
+                new Metrics(), new Tracer(0), m, new HashSet<>());
+    }
+
+    @Benchmark
+    public void drain(Blackhole bh) {
+        for (List<MessagePacket> gotPacks: batches)
+            bh.consume(lCausal.receiveBatch(gotPacks));
+    }
+}
@@ -0,0 +1,56 @@
+package cs451;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization of the messages, done for every packet sent and received by the Perfect Link
+ * The message is the one of a process influenced by every other of N processes (the biggest sparse vector clock W),
+ * with a lsn around m (the varints get longer with m)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MessagePacketBenchmark {
+    @Param({"3", "16", "128"})
+    private int n; // Number of processes
+    @Param({"10000", "1000000"})
+    private int m; // Number of messages broadcast by each process
+
+    private MessagePacket message; // Message to serialize
+    private ByteBuffer buf; // Buffer the message is serialized into
+    private ByteBuffer serialized; // Serialized message
+
+    @Setup
+    public void setup() {
+        // W: lsn of the message and lsn delivered from every other process
+        int[] W = new int[2 * n];
+        for (int pid = 1; pid <= n; pid++) {
+            W[2 * (pid - 1)] = pid;
+            W[2 * (pid - 1) + 1] = m - pid;
+        }
+        message = new MessagePacket(1, 2, m, W);
+        buf = ByteBuffer.allocate(64 * 1024);
+        message.serialize(buf);
+        buf.flip();
+        serialized = buf.asReadOnlyBuffer();
+    }
+
+    @Benchmark
+    public ByteBuffer serialize() {
+        buf.clear();
+        message.serialize(buf);
+        return buf;
+    }
+
+    @Benchmark
+    public MessagePacket deserialize() {
+        serialized.rewind();
+        return MessagePacket.deserialize(serialized);
+    }
+}
@@ -0,0 +1,56 @@
+package cs451;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FIFO delivery: the m messages of an origin are put in its reorder buffer and drained in lsn order,
+ * as done by FIFO (307640_FIFO) and LCausal (one invocation is the whole stream)
+ * The messages arrive shuffled in blocks of reorder messages
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ReorderBufferBenchmark {
+    @Param({"10000", "1000000"})
+    private int m; // Number of messages
+    @Param({"1", "64", "1024"})
+    private int reorder; // Size of the blocks of messages shuffled
+
+    private int[] arrivals; // lsns in the order they arrive
+
+    @Setup
+    public void setup() {
+        arrivals = new int[m];
+        for (int i = 0; i < m; i++)
+            arrivals[i] = i + 1;
+        // Shuffle every block (seeded, so every run receives in the same order)
+        Random random = new Random(42);
+        for (int start = 0; start < m; start += reorder) {
+            int end = Math.min(start + reorder, m);
+            for (int i = end - 1; i > start; i--) {
+                int j = start + random.nextInt(i - start + 1);
+                int tmp = arrivals[i];
+                arrivals[i] = arrivals[j];
+                arrivals[j] = tmp;
+            }
+        }
+    }
+
+    @Benchmark
+    public void drain(Blackhole bh) {
+        ReorderBuffer<String> pending = new ReorderBuffer<>(1);
+        for (int lsn: arrivals) {
+            pending.put(lsn, "");
+            // Deliver everything in order from the next lsn
+            while (pending.peek() != null)
+                bh.consume(pending.poll());
+        }
+    }
+}
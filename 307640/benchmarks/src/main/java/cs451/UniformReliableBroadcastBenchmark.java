@@ -0,0 +1,69 @@
+package cs451;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * URB receiving: the m messages of process 2 arrive at process 1 from process 2 and relayed by every other process,
+ * in batches like the ones the receiving thread drains from the Perfect Link (one invocation is the whole stream)
+ * Every message is delivered (at N/2+1 acks), relayed to the others and retired (at N acks)
+ * The stack runs in event loop mode over the simulated network, so no thread is started and the relays
+ * only go to the Perfect Link lists
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dcs451.eventloop=true", "-Dcs451.transport=sim"})
+@State(Scope.Thread)
+public class UniformReliableBroadcastBenchmark {
+    @Param({"3", "16", "128"})
+    private int n; // Number of processes
+    @Param({"10000"})
+    private int m; // Number of messages broadcast by process 2
+    @Param({"1024"})
+    private int batch; // Messages drained from the Perfect Link at a time
+
+    private List<Host> hosts; // Hosts of the processes
+    private List<List<MessagePacket>> batches; // Messages received, by batch
+    private UniformReliableBroadcast urb; // URB of process 1
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        hosts = new ArrayList<>();
+        for (int i = 1; i <= n; i++) {
+            Host host = new Host();
+            host.populate(Integer.toString(i), "127.0.0.1", Integer.toString(11000 + i));
+            hosts.add(host);
+        }
+        // Every sender sends its copies in lsn order: first the origin, then the relayers
+        List<MessagePacket> received = new ArrayList<>();
+        for (int sender = 2; sender <= n; sender++) {
+            for (int lsn = 1; lsn <= m; lsn++) {
+                int[] W = {2, lsn};
+                received.add(sender == 2 ? new MessagePacket(2, lsn, W) : new MessagePacket(2, sender, lsn, W));
+            }
+        }
+        batches = new ArrayList<>();
+        for (int i = 0; i < received.size(); i += batch)
+            batches.add(received.subList(i, Math.min(i + batch, received.size())));
+    }
+
+    @Setup(Level.Invocation)
+    public void setupInvocation() throws IOException {
+        urb = new UniformReliableBroadcast(hosts, 1, new LinkedBlockingQueue<>(), new LinkedBlockingQueue<>(),
+                new BenchmarkRecorder(n, m, 0), new Metrics(), new Tracer(0));
+    }
+
+    @Benchmark
+    public void receive(Blackhole bh) {
+        for (List<MessagePacket> gotPacks: batches)
+            bh.consume(urb.receiveBatch(gotPacks));
+    }
+}
@@ -0,0 +1,64 @@
+package cs451;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sliding window of a link: the ACKs of m packets go through a new window (one invocation is the whole stream)
+ * The ACKs arrive shuffled in blocks of reorder packets, as when the network reorders or loses some of them
+ * - markPacket: the window is big enough for every packet, only the ACKs and the window moves are measured
+ * - slowStart: the window starts at Constants.WINDOW_SIZE and grows with every ACK, as done by the ACKChecker
+ *   (the ACKs come in order here: a small window can't keep the ACKs of packets far above its lower bound)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WindowBenchmark {
+    @Param({"10000", "1000000"})
+    private int m; // Number of packets
+    @Param({"1", "64", "1024"})
+    private int reorder; // Size of the blocks of ACKs shuffled
+
+    private int[] acks; // lsns in the order they are ACKed
+
+    @Setup
+    public void setup() {
+        acks = new int[m];
+        for (int i = 0; i < m; i++)
+            acks[i] = i + 1;
+        // Shuffle every block (seeded, so every run ACKs in the same order)
+        Random random = new Random(42);
+        for (int start = 0; start < m; start += reorder) {
+            int end = Math.min(start + reorder, m);
+            for (int i = end - 1; i > start; i--) {
+                int j = start + random.nextInt(i - start + 1);
+                int tmp = acks[i];
+                acks[i] = acks[j];
+                acks[j] = tmp;
+            }
+        }
+    }
+
+    @Benchmark
+    public Window markPacket() {
+        Window window = new Window(m);
+        for (int lsn: acks)
+            window.markPacket(lsn);
+        return window;
+    }
+
+    @Benchmark
+    public Window slowStart() {
+        Window window = new Window(Constants.WINDOW_SIZE);
+        for (int lsn = 1; lsn <= m; lsn++) {
+            window.markPacket(lsn);
+            window.increaseSize();
+        }
+        return window;
+    }
+}
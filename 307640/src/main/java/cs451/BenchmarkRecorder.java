@@ -0,0 +1,128 @@
+package cs451;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Record what ClusterBenchmark measures in a process: the datagrams and bytes sent, and for the sampled messages
+ * (lsn multiple of the sample) the time they were broadcast and the first time they were delivered at every layer
+ * Times are Clock.nanoTime() (System.nanoTime() outside a deterministic simulation), so they can be compared
+ * between processes of the same machine
+ * (on Linux it's the monotonic clock of the system)
+ * The recorder is disabled when the sample is 0: nothing is kept and nothing is written
+ * The records are written at the end of the run as text lines:
+ *   sent DATAGRAMS BYTES
+ *   b LSN TIME
+ *   LAYER ORIGIN LSN TIME (LAYER is pl, urb or lcausal)
+ */
+public class BenchmarkRecorder {
+    public enum Layer { pl, urb, lcausal }
+
+    private final int n; // Number of processes
+    private final int sample; // 1 message every sample lsns is recorded (0 if disabled)
+    private final int samples; // Number of samples by origin
+    private final AtomicLongArray broadcasts; // Broadcast times by sample
+    private final AtomicLongArray[] deliveries; // Delivery times by layer, at (origin-1) * samples + sample
+    private final AtomicLong datagrams = new AtomicLong(); // Datagrams sent
+    private final AtomicLong bytes = new AtomicLong(); // Bytes sent
+
+    /**
+     * @param n number of processes
+     * @param m number of messages broadcast by each process
+     * @param sample 1 message every sample lsns is recorded (0 to disable the recorder)
+     */
+    public BenchmarkRecorder(int n, int m, int sample) {
+        this.n = n;
+        this.sample = sample;
+        this.samples = sample > 0 ? m / sample : 0;
+        this.broadcasts = new AtomicLongArray(samples);
+        this.deliveries = new AtomicLongArray[Layer.values().length];
+        for (Layer layer: Layer.values())
+            deliveries[layer.ordinal()] = new AtomicLongArray(n * samples);
+    }
+
+    /**
+     * @param lsn lsn of a message
+     * @return index of the sample of the message, -1 if it's not sampled
+     */
+    private int sampleOf(int lsn) {
+        if (sample == 0 || lsn % sample != 0 || lsn / sample > samples)
+            return -1;
+        return lsn / sample - 1;
+    }
+
+    /**
+     * Record the broadcast of a message of this process
+     * @param lsn lsn of the message
+     */
+    public void broadcast(int lsn) {
+        int i = sampleOf(lsn);
+        if (i >= 0)
+            broadcasts.compareAndSet(i, 0, Clock.nanoTime());
+    }
+
+    /**
+     * Record the delivery of a message at a layer (only the first one counts)
+     * @param layer the layer
+     * @param origin origin of the message
+     * @param lsn lsn of the message
+     */
+    public void deliver(Layer layer, int origin, int lsn) {
+        int i = sampleOf(lsn);
+        if (i >= 0)
+            deliveries[layer.ordinal()].compareAndSet((origin - 1) * samples + i, 0, Clock.nanoTime());
+    }
+
+    /**
+     * Record a datagram sent
+     * @param size bytes of the datagram
+     */
+    public void sent(int size) {
+        if (sample == 0)
+            return;
+        datagrams.incrementAndGet();
+        bytes.addAndGet(size);
+    }
+
+    /**
+     * Write the records (nothing if the recorder is disabled)
+     * @param outName path of the file to write
+     */
+    public void write(String outName) {
+        if (sample == 0)
+            return;
+        try (BufferedWriter fw = new BufferedWriter(new FileWriter(outName), 1 << 16)) {
+            fw.write("sent " + datagrams.get() + " " + bytes.get() + "\n");
+            for (int i = 0; i < samples; i++) {
+                if (broadcasts.get(i) != 0)
+                    fw.write("b " + (i + 1) * sample + " " + broadcasts.get(i) + "\n");
+            }
+            for (Layer layer: Layer.values()) {
+                AtomicLongArray times = deliveries[layer.ordinal()];
+                for (int j = 0; j < times.length(); j++) {
+                    if (times.get(j) != 0)
+                        fw.write(layer + " " + (j / samples + 1) + " " + (j % samples + 1) * sample + " "
+                                + times.get(j) + "\n");
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Impossible to write " + e.toString());
+        }
+    }
+
+    /**
+     * @return string recorder representation
+     */
+    @Override
+    public String toString() {
+        return "BenchmarkRecorder{" +
+                "n=" + n +
+                ", sample=" + sample +
+                ", datagrams=" + datagrams +
+                ", bytes=" + bytes +
+                '}';
+    }
+}
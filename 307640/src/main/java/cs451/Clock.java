@@ -0,0 +1,43 @@
+package cs451;
+
+/**
+ * Time of the protocol (nanoseconds): the send times, the retransmission timers and the RTTs are measured with it
+ * It's System.nanoTime(), unless a deterministic simulation switched it to a virtual time: then the time only moves
+ * when the simulation advances it (see Simulation), so a run doesn't depend on how fast the machine is
+ * The virtual time is read and advanced by the single thread of the simulation
+ */
+public class Clock {
+    private static volatile boolean virtual = false; // Whether the time is virtual
+    private static volatile long now = 0; // Virtual time
+
+    /**
+     * @return the current time (nanoseconds)
+     */
+    public static long nanoTime() {
+        return virtual ? now : System.nanoTime();
+    }
+
+    /**
+     * @return true if the time is virtual
+     */
+    public static boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * Switch to the virtual time, starting at 1 (a time 0 means not recorded for the BenchmarkRecorder)
+     * Must be called before the processes are created
+     */
+    static void startVirtual() {
+        now = 1;
+        virtual = true;
+    }
+
+    /**
+     * Move the virtual time forward
+     * @param time new virtual time (nothing is done if it's in the past)
+     */
+    static void advance(long time) {
+        now = Math.max(now, time);
+    }
+}
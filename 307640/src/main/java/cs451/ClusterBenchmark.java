@@ -0,0 +1,491 @@
+package cs451;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end benchmark: launch a cluster of N processes (cs451.Main in their own JVM, on loopback) with the
+ * barrier and finish signal protocol of barrier.py and finishedSignal.py, and measure every run:
+ * - messages delivered per second (from the barrier until every process delivered every message)
+ * - time to finish broadcasting (from the barrier to the finish signal, averaged on the processes)
+ * - broadcast to delivery latency at every layer (Perfect Link, URB, LCausal), p50/p99/p999 in milliseconds,
+ *   on the messages sampled by the BenchmarkRecorder of the processes
+ * - datagrams and bytes sent
+ * Every setting of the swept properties (--set) is run --runs times, and every run appends a JSON line to the
+ * results file. The loss/delay profile of the loopback is set with netem (--netem, needs root)
+ * Usage: java -cp bin cs451.ClusterBenchmark [-n N] [-m M] [--influences none|ring|all] [--runs R]
+ *            [--timeout SECONDS] [--sample K] [--netem "delay 10ms 5ms loss 5%"] [--set KEY=V1,V2,...]...
+ *            [--jvm OPTION]... [--dir DIR] [--results FILE]
+ * e.g. --set window=1,500 --set thresh=1000,2000 runs the 4 settings of -Dcs451.window and -Dcs451.thresh
+ */
+public class ClusterBenchmark {
+    private static final int BASE_PORT = 11000; // Process i is on port BASE_PORT + i
+    private static final double[] PERCENTILES = {0.5, 0.99, 0.999}; // Latency percentiles reported
+    private static final String[] PERCENTILE_NAMES = {"p50", "p99", "p999"};
+
+    private int n = 5; // Number of processes
+    private int m = 10000; // Number of messages broadcast by each process
+    private String influences = "ring"; // Configuration of the influences
+    private int runs = 1; // Runs of every setting
+    private long timeout = 60; // Maximum duration of a run (seconds)
+    private int sample = 10; // 1 message every sample lsns is recorded
+    private String netem = null; // netem profile of the loopback (null to leave it as it is)
+    private final LinkedHashMap<String, List<String>> sweep = new LinkedHashMap<>(); // Values of the swept properties
+    private final List<String> jvmOptions = new ArrayList<>(); // Options of the JVMs of the processes
+    private File dir = new File("bench"); // Directory of the runs
+    private File results = null; // File where the results are appended
+
+    /**
+     * Class (i.e. thread) that plays the barrier: wait for every process to connect, then release them together
+     */
+    private static class Barrier extends Thread {
+        private final ServerSocket server;
+        private final int waitFor; // Number of processes
+        private volatile long start = 0; // Time every process was released (ms)
+
+        /**
+         * @param waitFor number of processes
+         * @throws IOException if the socket can't be opened
+         */
+        Barrier(int waitFor) throws IOException {
+            this.server = new ServerSocket(0);
+            this.waitFor = waitFor;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            List<Socket> connections = new ArrayList<>();
+            try (ServerSocket s = server) {
+                // Every process sends its id (8 bytes) and waits until we close the connection
+                while (connections.size() < waitFor) {
+                    Socket conn = s.accept();
+                    new DataInputStream(conn.getInputStream()).readLong();
+                    connections.add(conn);
+                }
+                start = System.currentTimeMillis();
+                for (Socket conn: connections)
+                    conn.close();
+            } catch (IOException e) {
+                System.out.println("Barrier error: " + e.toString());
+            }
+        }
+    }
+
+    /**
+     * Class (i.e. thread) that receives the finish signals: every process connects at the start
+     * and closes the connection when it finished broadcasting
+     */
+    private static class Signal extends Thread {
+        private final ServerSocket server;
+        private final int waitFor; // Number of processes
+        private final Map<Long, Long> ends = Collections.synchronizedMap(new HashMap<>()); // Finish time (ms) by pid
+
+        /**
+         * @param waitFor number of processes
+         * @throws IOException if the socket can't be opened
+         */
+        Signal(int waitFor) throws IOException {
+            this.server = new ServerSocket(0);
+            this.waitFor = waitFor;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try (ServerSocket s = server) {
+                for (int i = 0; i < waitFor; i++) {
+                    Socket conn = s.accept();
+                    Thread reader = new Thread(() -> {
+                        try (DataInputStream in = new DataInputStream(conn.getInputStream())) {
+                            long pid = in.readLong();
+                            while (in.read() != -1) {}
+                            ends.put(pid, System.currentTimeMillis());
+                        } catch (IOException e) {
+                            System.out.println("Signal error: " + e.toString());
+                        }
+                    });
+                    reader.setDaemon(true);
+                    reader.start();
+                }
+            } catch (IOException e) {
+                System.out.println("Signal error: " + e.toString());
+            }
+        }
+    }
+
+    /**
+     * Count the deliveries written in an output file as it grows (the lines starting with 'd')
+     */
+    private static class DeliveryCounter {
+        private final File file;
+        private long offset = 0; // Bytes already read
+        private boolean lineStart = true; // True if the next byte starts a line
+        private long delivered = 0; // Deliveries counted
+
+        /**
+         * @param file output file
+         */
+        DeliveryCounter(File file) {
+            this.file = file;
+        }
+
+        /**
+         * Read what was written since the last call
+         * @return the deliveries counted
+         */
+        long update() {
+            if (!file.exists())
+                return delivered;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                raf.seek(offset);
+                byte[] buf = new byte[1 << 16];
+                int read;
+                while ((read = raf.read(buf)) > 0) {
+                    for (int i = 0; i < read; i++) {
+                        if (lineStart && buf[i] == 'd')
+                            delivered++;
+                        lineStart = buf[i] == '\n';
+                    }
+                    offset += read;
+                }
+            } catch (IOException e) {
+                System.out.println("Impossible to read " + e.toString());
+            }
+            return delivered;
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        ClusterBenchmark benchmark = new ClusterBenchmark();
+        if (!benchmark.parseArgs(args)) {
+            System.out.println("Usage: ClusterBenchmark [-n N] [-m M] [--influences none|ring|all] [--runs R] "
+                    + "[--timeout SECONDS] [--sample K] [--netem PROFILE] [--set KEY=V1,V2,...]... [--jvm OPTION]... "
+                    + "[--dir DIR] [--results FILE]");
+            return;
+        }
+        benchmark.runAll();
+    }
+
+    /**
+     * @param args command line arguments
+     * @return false if they are not valid
+     */
+    private boolean parseArgs(String[] args) {
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String value = i + 1 < args.length ? args[i + 1] : null;
+                if (value == null)
+                    return false;
+                switch (args[i]) {
+                    case "-n": n = Integer.parseInt(value); break;
+                    case "-m": m = Integer.parseInt(value); break;
+                    case "--influences": influences = value; break;
+                    case "--runs": runs = Integer.parseInt(value); break;
+                    case "--timeout": timeout = Long.parseLong(value); break;
+                    case "--sample": sample = Integer.parseInt(value); break;
+                    case "--netem": netem = value; break;
+                    case "--jvm": jvmOptions.add(value); break;
+                    case "--dir": dir = new File(value); break;
+                    case "--results": results = new File(value); break;
+                    case "--set":
+                        String[] kv = value.split("=", 2);
+                        if (kv.length != 2)
+                            return false;
+                        sweep.put(kv[0], Arrays.asList(kv[1].split(",")));
+                        break;
+                    default:
+                        return false;
+                }
+                i++;
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        if (results == null)
+            results = new File(dir, "results.jsonl");
+        return n > 0 && m > 0 && runs > 0 && sample > 0 && Arrays.asList("none", "ring", "all").contains(influences);
+    }
+
+    /**
+     * @return every combination of the values of the swept properties (one map if nothing is swept)
+     */
+    private List<LinkedHashMap<String, String>> settings() {
+        List<LinkedHashMap<String, String>> settings = new ArrayList<>();
+        settings.add(new LinkedHashMap<>());
+        for (Map.Entry<String, List<String>> property: sweep.entrySet()) {
+            List<LinkedHashMap<String, String>> next = new ArrayList<>();
+            for (LinkedHashMap<String, String> setting: settings) {
+                for (String value: property.getValue()) {
+                    LinkedHashMap<String, String> s = new LinkedHashMap<>(setting);
+                    s.put(property.getKey(), value);
+                    next.add(s);
+                }
+            }
+            settings = next;
+        }
+        return settings;
+    }
+
+    /**
+     * Run every setting the given number of times
+     */
+    private void runAll() throws InterruptedException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            System.out.println("Impossible to create " + dir);
+            return;
+        }
+        if (netem != null) {
+            // Remove the profile at the end, also if we are stopped
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> command("tc", "qdisc", "del", "dev", "lo", "root")));
+            List<String> tc = new ArrayList<>(Arrays.asList("tc", "qdisc", "replace", "dev", "lo", "root", "netem"));
+            tc.addAll(Arrays.asList(netem.trim().split("\\s+")));
+            if (!command(tc.toArray(new String[0]))) {
+                System.out.println("Impossible to set the netem profile (root is needed)");
+                return;
+            }
+        }
+        int runId = 0;
+        for (LinkedHashMap<String, String> setting: settings()) {
+            for (int run = 1; run <= runs; run++) {
+                runId++;
+                File runDir = new File(dir, String.format("run%03d", runId));
+                System.out.println("Run " + runId + " " + setting + " (" + run + "/" + runs + ")");
+                String result = runOnce(setting, run, runDir);
+                if (result == null)
+                    continue;
+                System.out.println(result);
+                try (FileWriter fw = new FileWriter(results, true)) {
+                    fw.write(result + "\n");
+                } catch (IOException e) {
+                    System.out.println("Impossible to write " + e.toString());
+                }
+            }
+        }
+    }
+
+    /**
+     * Run a command and wait for it
+     * @param command the command
+     * @return true if it succeeded
+     */
+    private static boolean command(String... command) {
+        try {
+            return new ProcessBuilder(command).inheritIO().start().waitFor() == 0;
+        } catch (IOException | InterruptedException e) {
+            System.out.println("Command error: " + e.toString());
+            return false;
+        }
+    }
+
+    /**
+     * Write the hosts and config files of a run
+     * @param runDir directory of the run
+     * @throws IOException if a file can't be written
+     */
+    private void writeFiles(File runDir) throws IOException {
+        try (FileWriter fw = new FileWriter(new File(runDir, "hosts"))) {
+            for (int i = 1; i <= n; i++)
+                fw.write(i + " 127.0.0.1 " + (BASE_PORT + i) + "\n");
+        }
+        try (FileWriter fw = new FileWriter(new File(runDir, "config"))) {
+            fw.write(m + "\n");
+            for (int i = 1; i <= n; i++) {
+                StringBuilder line = new StringBuilder(Integer.toString(i));
+                for (int j = 1; j <= n; j++) {
+                    if (j != i && (influences.equals("all") || (influences.equals("ring") && j == i % n + 1)))
+                        line.append(' ').append(j);
+                }
+                fw.write(line + "\n");
+            }
+        }
+    }
+
+    /**
+     * Run the cluster once
+     * @param setting values of the swept properties
+     * @param run number of the run of the setting
+     * @param runDir directory of the run
+     * @return the result as a JSON line, null if the run could not start
+     */
+    private String runOnce(Map<String, String> setting, int run, File runDir) throws InterruptedException {
+        List<Process> processes = new ArrayList<>();
+        try {
+            if (!runDir.isDirectory() && !runDir.mkdirs())
+                throw new IOException("Impossible to create " + runDir);
+            writeFiles(runDir);
+            Barrier barrier = new Barrier(n);
+            Signal signal = new Signal(n);
+            barrier.start();
+            signal.start();
+
+            // Start the processes
+            String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+            for (int i = 1; i <= n; i++) {
+                List<String> cmd = new ArrayList<>();
+                cmd.add(java);
+                cmd.addAll(jvmOptions);
+                setting.forEach((key, value) -> cmd.add("-Dcs451." + key + "=" + value));
+                cmd.add("-Dcs451.output=text"); // Deliveries are counted in the text output
+                cmd.add("-Dcs451.bench.sample=" + sample);
+                cmd.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), "cs451.Main",
+                        "--id", Integer.toString(i),
+                        "--hosts", new File(runDir, "hosts").getPath(),
+                        "--barrier", "127.0.0.1:" + barrier.server.getLocalPort(),
+                        "--signal", "127.0.0.1:" + signal.server.getLocalPort(),
+                        "--output", output(runDir, i).getPath(),
+                        new File(runDir, "config").getPath()));
+                processes.add(new ProcessBuilder(cmd).redirectErrorStream(true)
+                        .redirectOutput(new File(runDir, String.format("proc%02d.stdout", i))).start());
+            }
+
+            // Wait for the barrier, then until every process delivered every message (or the timeout)
+            barrier.join(TimeUnit.SECONDS.toMillis(timeout));
+            if (barrier.start == 0)
+                throw new IOException("The processes did not reach the barrier");
+            long start = barrier.start;
+            long end = start + TimeUnit.SECONDS.toMillis(timeout);
+            List<DeliveryCounter> counters = new ArrayList<>();
+            for (int i = 1; i <= n; i++)
+                counters.add(new DeliveryCounter(output(runDir, i)));
+            long delivered = 0;
+            long expected = (long) n * n * m;
+            while (delivered < expected && System.currentTimeMillis() < end) {
+                Thread.sleep(50);
+                delivered = 0;
+                for (DeliveryCounter counter: counters)
+                    delivered += counter.update();
+            }
+            double seconds = (System.currentTimeMillis() - start) / 1000.0;
+
+            // Stop the processes (they write their records) and collect the results
+            stop(processes);
+            double broadcastMs = 0;
+            synchronized (signal.ends) {
+                for (long finished: signal.ends.values())
+                    broadcastMs += finished - start;
+                broadcastMs = signal.ends.isEmpty() ? -1 : broadcastMs / signal.ends.size();
+            }
+            return result(setting, run, runDir, delivered, expected, seconds, broadcastMs);
+        } catch (IOException e) {
+            System.out.println("Run error: " + e.toString());
+            stop(processes);
+            return null;
+        }
+    }
+
+    /**
+     * @param runDir directory of the run
+     * @param pid a process
+     * @return the output file of the process
+     */
+    private static File output(File runDir, int pid) {
+        return new File(runDir, String.format("proc%02d.output", pid));
+    }
+
+    /**
+     * Stop the processes with SIGTERM (so they write their output and records), kill them if they don't stop
+     * @param processes the processes
+     */
+    private static void stop(List<Process> processes) throws InterruptedException {
+        for (Process p: processes)
+            p.destroy();
+        for (Process p: processes) {
+            if (!p.waitFor(10, TimeUnit.SECONDS))
+                p.destroyForcibly().waitFor();
+        }
+    }
+
+    /**
+     * Read the records of the processes and build the result of the run
+     * @return the result as a JSON line
+     */
+    private String result(Map<String, String> setting, int run, File runDir, long delivered, long expected,
+                          double seconds, double broadcastMs) throws IOException {
+        long datagrams = 0;
+        long bytes = 0;
+        // Broadcast times by origin and lsn, and delivery times by layer
+        HashMap<Long, Long> broadcasts = new HashMap<>();
+        EnumMap<BenchmarkRecorder.Layer, List<long[]>> deliveries = new EnumMap<>(BenchmarkRecorder.Layer.class);
+        for (BenchmarkRecorder.Layer layer: BenchmarkRecorder.Layer.values())
+            deliveries.put(layer, new ArrayList<>());
+        for (int i = 1; i <= n; i++) {
+            File records = new File(output(runDir, i).getPath() + ".bench");
+            if (!records.exists()) {
+                System.out.println("No records for process " + i);
+                continue;
+            }
+            try (BufferedReader reader = new BufferedReader(new FileReader(records))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] s = line.split(" ");
+                    if (s[0].equals("sent")) {
+                        datagrams += Long.parseLong(s[1]);
+                        bytes += Long.parseLong(s[2]);
+                    } else if (s[0].equals("b"))
+                        broadcasts.put(key(i, Integer.parseInt(s[1])), Long.parseLong(s[2]));
+                    else
+                        deliveries.get(BenchmarkRecorder.Layer.valueOf(s[0])).add(new long[]{
+                                key(Integer.parseInt(s[1]), Integer.parseInt(s[2])), Long.parseLong(s[3])});
+                }
+            }
+        }
+
+        StringBuilder json = new StringBuilder("{\"setting\":{");
+        String sep = "";
+        for (Map.Entry<String, String> e: setting.entrySet()) {
+            json.append(sep).append('"').append(e.getKey()).append("\":\"").append(e.getValue()).append('"');
+            sep = ",";
+        }
+        json.append("},\"run\":").append(run)
+                .append(",\"n\":").append(n)
+                .append(",\"m\":").append(m)
+                .append(",\"influences\":\"").append(influences).append('"')
+                .append(",\"netem\":").append(netem == null ? "null" : "\"" + netem + "\"")
+                .append(",\"delivered\":").append(delivered)
+                .append(",\"expected\":").append(expected)
+                .append(",\"complete\":").append(delivered == expected)
+                .append(",\"seconds\":").append(String.format(Locale.ROOT, "%.3f", seconds))
+                .append(",\"throughput\":").append(String.format(Locale.ROOT, "%.1f", delivered / seconds))
+                .append(",\"broadcast_ms\":").append(String.format(Locale.ROOT, "%.1f", broadcastMs))
+                .append(",\"datagrams\":").append(datagrams)
+                .append(",\"bytes\":").append(bytes)
+                .append(",\"latency_ms\":{");
+        sep = "";
+        for (BenchmarkRecorder.Layer layer: BenchmarkRecorder.Layer.values()) {
+            // Latency of every sampled message delivered at the layer by every process
+            List<Long> latencies = new ArrayList<>();
+            for (long[] d: deliveries.get(layer)) {
+                Long broadcast = broadcasts.get(d[0]);
+                if (broadcast != null)
+                    latencies.add(d[1] - broadcast);
+            }
+            Collections.sort(latencies);
+            json.append(sep).append('"').append(layer).append("\":{\"count\":").append(latencies.size());
+            for (int p = 0; p < PERCENTILES.length; p++) {
+                json.append(",\"").append(PERCENTILE_NAMES[p]).append("\":");
+                if (latencies.isEmpty())
+                    json.append("null");
+                else {
+                    int index = (int) Math.ceil(PERCENTILES[p] * latencies.size()) - 1;
+                    json.append(String.format(Locale.ROOT, "%.3f", latencies.get(Math.max(index, 0)) / 1e6));
+                }
+            }
+            json.append('}');
+            sep = ",";
+        }
+        return json.append("}}").toString();
+    }
+
+    /**
+     * @param origin origin of a message
+     * @param lsn lsn of the message
+     * @return key of the message
+     */
+    private static long key(int origin, int lsn) {
+        return ((long) origin << 32) | lsn;
+    }
+}
@@ -28,7 +28,56 @@ public class Constants {
     // indexes for config
     public static final int CONFIG_VALUE = 10;
 
-    // window size and threshold for flow and congestion control
-    public static int WINDOW_SIZE = 1;
-    public static int INIT_THRESH = 1000;
+    // window size and threshold for flow and congestion control (-Dcs451.window, -Dcs451.thresh)
+    public static int WINDOW_SIZE = Integer.getInteger("cs451.window", 1);
+    public static int INIT_THRESH = Integer.getInteger("cs451.thresh", 1000);
+
+    // transport used by the perfect link: "socket" (DatagramSocket), "nio" (DatagramChannel, direct buffers)
+    // or "sim" (in-process simulated network, see Simulation)
+    public static final String TRANSPORT = System.getProperty("cs451.transport", "socket");
+
+    // simulated network: seed, probability a datagram is lost or duplicated, delay and random jitter added to it
+    // (milliseconds, datagrams are reordered when the jitter is greater than the time between them)
+    // The seed fixes the faults of the k-th datagram of every link. With threads it doesn't fix the run (which datagram
+    // is the k-th and when it arrives depend on their scheduling), in event loop mode the Simulation is deterministic
+    public static final long SIM_SEED = Long.getLong("cs451.sim.seed", 42);
+    public static final double SIM_LOSS = Double.parseDouble(System.getProperty("cs451.sim.loss", "0"));
+    public static final double SIM_DUP = Double.parseDouble(System.getProperty("cs451.sim.dup", "0"));
+    public static final double SIM_DELAY = Double.parseDouble(System.getProperty("cs451.sim.delay", "0"));
+    public static final double SIM_JITTER = Double.parseDouble(System.getProperty("cs451.sim.jitter", "0"));
+
+    // run the whole stack on the main thread, as an event loop driven by a selector (-Dcs451.eventloop=true)
+    public static final boolean EVENT_LOOP = Boolean.getBoolean("cs451.eventloop");
+
+    // perfect link threads (1 each in event loop mode): receivers, each on its own socket bound to the process port
+    // with SO_REUSEPORT (-Dcs451.receivers), and senders, each sending to a shard of the processes (-Dcs451.senders)
+    public static final int RECEIVERS = EVENT_LOOP ? 1 : Math.max(Integer.getInteger("cs451.receivers", 1), 1);
+    public static final int SENDERS = EVENT_LOOP ? 1 : Math.max(Integer.getInteger("cs451.senders", 1), 1);
+
+    // output log: "text" (lines streamed to the output file) or "binary" (records mapped in output + ".bin",
+    // rendered as text by OutputConverter after the run)
+    public static final String OUTPUT_LOG = System.getProperty("cs451.output", "text");
+
+    // benchmark recorder: timestamps of 1 message every BENCH_SAMPLE lsns at every layer, written at the end of the
+    // run in output + ".bench" for ClusterBenchmark (-Dcs451.bench.sample, 0 disables the recorder)
+    public static final int BENCH_SAMPLE = Math.max(Integer.getInteger("cs451.bench.sample", 0), 0);
+
+    // metrics of the layers (see Metrics): dumped in output + ".metrics" every METRICS_PERIOD milliseconds
+    // and at the end of the run (-Dcs451.metrics=true, -Dcs451.metrics.period)
+    public static final boolean METRICS = Boolean.getBoolean("cs451.metrics");
+    public static final long METRICS_PERIOD = Math.max(Long.getLong("cs451.metrics.period", 1000), 1);
+
+    // tracer of the queues between the layers (see Tracer): wait and depth of 1 element every TRACE_SAMPLE
+    // enqueued, written at the end of the run in output + ".trace" (-Dcs451.trace.sample, 0 disables the tracer)
+    public static final int TRACE_SAMPLE = Math.max(Integer.getInteger("cs451.trace.sample", 0), 0);
+
+    // maximum payload of a UDP datagram (size of the send/receive buffers)
+    public static final int MAX_PACKET_SIZE = 65507;
+    // maximum bytes of messages batched in a single datagram (ethernet MTU minus IP and UDP headers)
+    public static final int MAX_BATCH_SIZE = 1472;
+    // maximum bytes of the selective ACK bitmap (lsns further above the cumulative ACK are acked later)
+    public static final int MAX_SACK_SIZE = 512;
+    // retransmission timer wheel: number of slots and duration of a slot (nanoseconds)
+    public static final int TIMER_WHEEL_SLOTS = 1024;
+    public static final long TIMER_TICK = 1000000L;
 }
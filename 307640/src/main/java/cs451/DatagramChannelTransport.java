@@ -0,0 +1,136 @@
+package cs451;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * Transport using two blocking DatagramChannels, one to send and one to receive
+ * Buffers are direct, so the channel reads/writes them without copying through the heap
+ * In event loop mode the receiving channel is made non blocking and registered on a selector
+ */
+public class DatagramChannelTransport implements SelectableTransport {
+    private final DatagramChannel dcSend; // Channel to send messages
+    private final DatagramChannel dcRec; // Channel to receive messages
+    private Selector selector; // Selector waiting for datagrams on the receiving channel (event loop mode)
+
+    /**
+     * @param port port to receive on
+     * @param reusePort true to bind the receiving channel with SO_REUSEPORT
+     * @throws IOException if the channels can't be opened
+     */
+    public DatagramChannelTransport(int port, boolean reusePort) throws IOException {
+        this.dcSend = DatagramChannel.open();
+        try {
+            this.dcRec = DatagramChannel.open();
+        } catch (IOException e) {
+            dcSend.close();
+            throw e;
+        }
+        try {
+            if (reusePort)
+                this.dcRec.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            this.dcRec.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param size buffer capacity
+     * @return a direct buffer
+     */
+    @Override
+    public ByteBuffer allocate(int size) {
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    /**
+     * Send the buffer content on the sending channel
+     * @param buf buffer to send
+     * @param dest destination address
+     * @throws IOException if the datagram can't be sent
+     */
+    @Override
+    public void send(ByteBuffer buf, SocketAddress dest) throws IOException {
+        dcSend.send(buf, dest);
+    }
+
+    /**
+     * Receive a datagram on the receiving channel
+     * @param buf buffer to receive into
+     * @return the address of the sender
+     * @throws IOException if the datagram can't be received
+     */
+    @Override
+    public SocketAddress receive(ByteBuffer buf) throws IOException {
+        buf.clear();
+        SocketAddress from = dcRec.receive(buf);
+        buf.flip();
+        return from;
+    }
+
+    /**
+     * Make the receiving channel non blocking and register it on the selector (the first time)
+     * @return the selector
+     * @throws IOException if the selector can't be opened
+     */
+    private Selector selector() throws IOException {
+        if (selector == null) {
+            dcRec.configureBlocking(false);
+            selector = Selector.open();
+            dcRec.register(selector, SelectionKey.OP_READ);
+        }
+        return selector;
+    }
+
+    /**
+     * Wait on the selector until the receiving channel has a datagram or the timeout expires
+     * @param timeoutMs maximum time to wait (milliseconds, > 0)
+     * @throws IOException if the selector fails
+     */
+    @Override
+    public void await(long timeoutMs) throws IOException {
+        selector().select(timeoutMs);
+        selector.selectedKeys().clear();
+    }
+
+    /**
+     * Receive a datagram on the non blocking receiving channel
+     * @param buf buffer to receive into
+     * @return the address of the sender, null if no datagram was ready
+     * @throws IOException if the datagram can't be received
+     */
+    @Override
+    public SocketAddress receiveNow(ByteBuffer buf) throws IOException {
+        selector();
+        buf.clear();
+        SocketAddress from = dcRec.receive(buf);
+        buf.flip();
+        return from;
+    }
+
+    /**
+     * Close both channels (and the selector, if it was opened)
+     * @throws IOException if a channel can't be closed
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (selector != null)
+                selector.close();
+        } finally {
+            try {
+                dcSend.close();
+            } finally {
+                dcRec.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package cs451;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+
+/**
+ * Transport using two blocking DatagramSockets, one to send and one to receive
+ * Buffers are heap buffers, as DatagramPacket works on byte arrays
+ */
+public class DatagramSocketTransport implements Transport {
+    private final DatagramSocket dsSend; // Socket to send messages
+    private final DatagramSocket dsRec; // Socket to receive messages
+    private DatagramPacket dpRec; // Packet to receive on (reused while the receive buffer is the same)
+
+    /**
+     * @param port port to receive on
+     * @param reusePort true to bind the receiving socket with SO_REUSEPORT
+     * @throws IOException if the sockets can't be opened
+     */
+    public DatagramSocketTransport(int port, boolean reusePort) throws IOException {
+        this.dsSend = new DatagramSocket();
+        try {
+            this.dsRec = new DatagramSocket(null);
+        } catch (IOException e) {
+            dsSend.close();
+            throw e;
+        }
+        try {
+            if (reusePort)
+                this.dsRec.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            this.dsRec.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param size buffer capacity
+     * @return a heap buffer
+     */
+    @Override
+    public ByteBuffer allocate(int size) {
+        return ByteBuffer.allocate(size);
+    }
+
+    /**
+     * Send the buffer content on the sending socket
+     * @param buf buffer to send
+     * @param dest destination address
+     * @throws IOException if the datagram can't be sent
+     */
+    @Override
+    public void send(ByteBuffer buf, SocketAddress dest) throws IOException {
+        dsSend.send(new DatagramPacket(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining(), dest));
+        buf.position(buf.limit());
+    }
+
+    /**
+     * Receive a datagram on the receiving socket
+     * @param buf buffer to receive into
+     * @return the address of the sender
+     * @throws IOException if the datagram can't be received
+     */
+    @Override
+    public SocketAddress receive(ByteBuffer buf) throws IOException {
+        if (dpRec == null || dpRec.getData() != buf.array())
+            dpRec = new DatagramPacket(buf.array(), buf.arrayOffset(), buf.capacity());
+        // Reset the packet length to the whole buffer before receiving
+        dpRec.setLength(buf.capacity());
+        dsRec.receive(dpRec);
+        buf.clear();
+        buf.limit(dpRec.getLength());
+        return dpRec.getSocketAddress();
+    }
+
+    /**
+     * Close both sockets
+     */
+    @Override
+    public void close() {
+        dsSend.close();
+        dsRec.close();
+    }
+}
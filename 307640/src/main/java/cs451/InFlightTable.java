@@ -0,0 +1,211 @@
+package cs451;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Table of the packets sent and still waiting for an ACK, keyed by (destination, packet type, lsn)
+ * For every packet it keeps the time of the last send and the number of sends (retransmits + 1)
+ * Open addressing with linear probing on a primitive key, values in parallel arrays: no object per packet
+ * Not thread safe (in the Perfect Link it's guarded by the lock of its LinkState)
+ */
+public class InFlightTable {
+    public static final long NOT_IN_FLIGHT = Long.MIN_VALUE; // Send time of a packet not in the table
+    private static final long EMPTY = 0; // Key of an empty slot (never a real key: pids start from 1)
+    private long[] keys; // Packed keys (destination, type, lsn), capacity is a power of 2
+    private long[] sentAt; // Time of the last send by slot
+    private int[] sends; // Number of sends by slot
+    private int size = 0; // Number of packets in the table
+
+    /**
+     * Create an empty table
+     * @param capacity initial capacity (rounded up to a power of 2)
+     */
+    public InFlightTable(int capacity) {
+        int slots = Integer.highestOneBit(Math.max(capacity, 2));
+        if (slots < capacity)
+            slots <<= 1;
+        this.keys = new long[slots];
+        this.sentAt = new long[slots];
+        this.sends = new int[slots];
+    }
+
+    /**
+     * Pack the key of a packet in a long: pid (bits 40-63), type (bits 32-39), lsn (bits 0-31)
+     * @param pid destination process
+     * @param type packet type
+     * @param lsn packet lsn
+     * @return the key
+     */
+    private static long key(int pid, Packet.packType type, int lsn) {
+        return ((long) pid << 40) | ((long) type.ordinal() << 32) | (lsn & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @param key a packed key
+     * @return the first slot where the key may be
+     */
+    private int slot(long key) {
+        // Spread the bits of the key (lsns of the same process differ only in the lower bits)
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & (keys.length - 1);
+    }
+
+    /**
+     * @param key a packed key
+     * @return the slot with the key, or -1 if the key isn't in the table
+     */
+    private int find(long key) {
+        for (int i = slot(key); keys[i] != EMPTY; i = (i + 1) & (keys.length - 1)) {
+            if (keys[i] == key)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Record a send of a packet
+     * @param pid destination process
+     * @param type packet type
+     * @param lsn packet lsn
+     * @param now time of the send
+     * @return the retransmission number of this send (0 for the first one)
+     */
+    public int send(int pid, Packet.packType type, int lsn, long now) {
+        long key = key(pid, type, lsn);
+        int i = slot(key);
+        while (keys[i] != EMPTY && keys[i] != key)
+            i = (i + 1) & (keys.length - 1);
+        if (keys[i] == EMPTY) {
+            // New packet
+            keys[i] = key;
+            sends[i] = 0;
+            size++;
+        }
+        sentAt[i] = now;
+        int rNum = sends[i]++;
+        // Keep the table at most half full
+        if (2 * size > keys.length)
+            resize(2 * keys.length);
+        return rNum;
+    }
+
+    /**
+     * @param pid destination process
+     * @param type packet type
+     * @param lsn packet lsn
+     * @return the time of the last send, NOT_IN_FLIGHT if the packet isn't waiting for an ACK
+     */
+    public long getSentAt(int pid, Packet.packType type, int lsn) {
+        int i = find(key(pid, type, lsn));
+        return i < 0 ? NOT_IN_FLIGHT : sentAt[i];
+    }
+
+    /**
+     * @param pid destination process
+     * @param type packet type
+     * @param lsn packet lsn
+     * @return the number of sends of the packet, 0 if the packet isn't waiting for an ACK
+     */
+    public int getSends(int pid, Packet.packType type, int lsn) {
+        int i = find(key(pid, type, lsn));
+        return i < 0 ? 0 : sends[i];
+    }
+
+    /**
+     * Remove a packet (it was ACKed)
+     * @param pid destination process
+     * @param type packet type
+     * @param lsn packet lsn
+     * @return true if the packet was in the table
+     */
+    public boolean remove(int pid, Packet.packType type, int lsn) {
+        int i = find(key(pid, type, lsn));
+        if (i < 0)
+            return false;
+        // Shift back the following keys of the cluster that can't be found anymore past the hole
+        int mask = keys.length - 1;
+        for (int j = (i + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+            int home = slot(keys[j]);
+            // Move the key at j into the hole at i if its home slot is not in (i, j] (cyclically)
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                keys[i] = keys[j];
+                sentAt[i] = sentAt[j];
+                sends[i] = sends[j];
+                i = j;
+            }
+        }
+        keys[i] = EMPTY;
+        size--;
+        return true;
+    }
+
+    /**
+     * Move every packet in a table with a new capacity
+     * @param capacity the new capacity (power of 2)
+     */
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        long[] oldSentAt = sentAt;
+        int[] oldSends = sends;
+        keys = new long[capacity];
+        sentAt = new long[capacity];
+        sends = new int[capacity];
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] == EMPTY)
+                continue;
+            int i = slot(oldKeys[j]);
+            while (keys[i] != EMPTY)
+                i = (i + 1) & (capacity - 1);
+            keys[i] = oldKeys[j];
+            sentAt[i] = oldSentAt[j];
+            sends[i] = oldSends[j];
+        }
+    }
+
+    /**
+     * @return number of packets waiting for an ACK
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Check equality
+     * @param o Another object
+     * @return true/false if objects are or not the same
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        InFlightTable that = (InFlightTable) o;
+        return size == that.size &&
+                Arrays.equals(keys, that.keys) &&
+                Arrays.equals(sentAt, that.sentAt) &&
+                Arrays.equals(sends, that.sends);
+    }
+
+    /**
+     * @return hashcode
+     */
+    @Override
+    public int hashCode() {
+        int result = Objects.hash(size);
+        result = 31 * result + Arrays.hashCode(keys);
+        result = 31 * result + Arrays.hashCode(sentAt);
+        result = 31 * result + Arrays.hashCode(sends);
+        return result;
+    }
+
+    /**
+     * @return string table representation
+     */
+    @Override
+    public String toString() {
+        return "InFlightTable{" +
+                "size=" + size +
+                ", capacity=" + keys.length +
+                '}';
+    }
+}
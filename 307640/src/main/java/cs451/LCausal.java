@@ -1,33 +1,50 @@
 package cs451;
 
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.stream.Collectors;
 
+/**
+ * Localized causal broadcast on top of the URB
+ * In event loop mode (see Constants.EVENT_LOOP) no thread is started: Main calls step() in a loop
+ */
 public class LCausal {
     private final UniformReliableBroadcast urb;
-    private final HashMap<Integer, HashSet<MessagePacket>> pending = new HashMap<>();
+    // Messages not delivered yet by origin, indexed by lsn (the next one is the only one that may be deliverable)
+    private final HashMap<Integer, ReorderBuffer<MessagePacket>> pending = new HashMap<>();
+    // Origins whose next message is blocked, by the entry of vcRec it waits for: pid -> lsn -> origins
+    // (the origins are checked again when vcRec[pid-1] reaches lsn)
+    private final HashMap<Integer, HashMap<Integer, List<Integer>>> waiting = new HashMap<>();
     private final LinkedBlockingQueue<MessagePacket> messageToSendDown; // Messages to send to URB
     private final LinkedBlockingQueue<MessagePacket> messageDeliveredDown; // Messages delivered from URB
-    private final LinkedBlockingQueue<String> messageToDeliverUp; // Messages to deliver to Main
-    private final Coordinator coordinator; // Main coordinator for finishedBroadcasting()
+    private final LinkedBlockingQueue<MessagePacket> messageToDeliverUp; // Messages to deliver to Main
+    private final Coordinator coordinator; // Main coordinator for finishedBroadcasting() (null if none, e.g. simulation)
+    private final OutputLog out; // Log of the broadcast events
+    private final BenchmarkRecorder recorder; // Benchmark recorder of the process
+    private final Metrics.Counter broadcastCount; // Messages broadcast
+    private final Metrics.Counter deliveredCount; // Messages delivered to Main
+    private final Metrics.Histogram batchTime; // Time to process a batch delivered by URB
     private int[] vcSend; // Vector clock of messages to send (to ensure others will respect process' causal relations)
     private int[] vcRec; // Vector clock of messages to receive (to ensure respect of other causal relations)
     private HashSet<Integer> influences; // List of pid of processes influencing this process
     private int id; // Process id
     private int m; // Number of messages to broadcast
-    protected static int windowLimit = Constants.WINDOW_SIZE; // Number of sendable messages (changed by PL)
-    protected static final Object lockSending = new Object(); // Lock waiting for more messages to be deliverable
-    protected static final Object lockV = new Object(); // Lock for vector clock modification
+    private int nextLsn = 1; // Next message to broadcast (event loop mode)
+    private boolean signaled = false; // True if the end of broadcasting was signaled (event loop mode)
+    private final Object lockV = new Object(); // Lock for vector clock modification
 
-    public LCausal(List<Host> hosts, int id, LinkedBlockingQueue<String> messageToDeliverUp, Coordinator coordinator,
-                   int m, HashSet<Integer> influences) {
+    public LCausal(List<Host> hosts, int id, LinkedBlockingQueue<MessagePacket> messageToDeliverUp, Coordinator coordinator,
+                   OutputLog out, BenchmarkRecorder recorder, Metrics metrics, Tracer tracer, int m,
+                   HashSet<Integer> influences) throws IOException {
         // Init control structures and URB layer
         this.messageToDeliverUp = messageToDeliverUp;
         this.coordinator = coordinator;
-        this.messageDeliveredDown = new LinkedBlockingQueue<>();
-        this.messageToSendDown = new LinkedBlockingQueue<>();
-        this.urb = new UniformReliableBroadcast(hosts, id, messageToSendDown, messageDeliveredDown);
+        this.out = out;
+        this.recorder = recorder;
+        this.messageDeliveredDown = tracer.queue("urb_to_lcausal");
+        this.messageToSendDown = tracer.queue("lcausal_to_urb");
+        this.urb = new UniformReliableBroadcast(hosts, id, messageToSendDown, messageDeliveredDown, recorder, metrics,
+                tracer);
         this.vcRec = new int[hosts.size()];
         this.vcSend = new int[hosts.size()];
         this.influences = new HashSet<>();
@@ -36,6 +53,20 @@ public class LCausal {
         this.influences = influences;
         Arrays.fill(this.vcRec, 1);
         Arrays.fill(this.vcSend, 1);
+        for (Host h: hosts) {
+            pending.put(h.getId(), new ReorderBuffer<>(1)); // First lsn to deliver, like vcRec
+            waiting.put(h.getId(), new HashMap<>());
+        }
+        this.broadcastCount = metrics.counter("lcausal.broadcast");
+        this.deliveredCount = metrics.counter("lcausal.delivered");
+        this.batchTime = metrics.histogram("lcausal.batch_ns");
+        // The buffers are read without the lock of the delivering thread: the size is approximate
+        metrics.gauge("lcausal.pending", () -> pending.values().stream().mapToLong(ReorderBuffer::size).sum());
+        metrics.gauge("queue.lcausal_to_urb", messageToSendDown::size);
+        metrics.gauge("queue.urb_to_lcausal", messageDeliveredDown::size);
+        metrics.gauge("queue.lcausal_to_main", messageToDeliverUp::size);
+        if (Constants.EVENT_LOOP)
+            return;
         receiveAndDeliver();
         broadcast();
     }
@@ -52,41 +83,74 @@ public class LCausal {
             int lsn = 1;
             while(lsn<=m) {
                 // Wait until Perfect Link layer says it's possible to broadcast something
-                synchronized (lockSending) { // Acquire the lock before waiting
-                    while(lsn==windowLimit+1) {
-                        try {
-                            lockSending.wait();
-                        } catch (InterruptedException e) {
-                            System.out.println("Interrupted LCausal waiting: " + e.toString());
-                        }
-                    }
-                    try {
-                        int[] W;
-                        synchronized (lockV) {
-                            // Prepare vector clock W to send
-                            W = vcSend.clone();
-                            W[id - 1] = lsn; // Put process lsn inside W clock
-                            synchronized (Main.lockOut) {
-                                // Directly add the message as broadcasted, even if we fail before this is done
-                                // Doing it here avoid the edge case where the delivery thread put the message
-                                // as delivered immediately after we copied the VC but before we put it in broadcast
-                                // Creating a causal relationship in the output that do not exist
-                                Main.out.add("b " + lsn);
-                            }
-                        }
-                        // Create a MessagePacket that contains lsn as header info + the vector clock
-                        MessagePacket messagePacket = new MessagePacket(String.valueOf(lsn), W);
-                        messageToSendDown.put(messagePacket); // Send it down
-                    } catch (InterruptedException e) {
-                        System.out.println("Sending message in main error: " + e.toString());
-                    }
+                urb.waitWindowLimit(lsn);
+                try {
+                    messageToSendDown.put(newMessage(lsn)); // Send it down
+                } catch (InterruptedException e) {
+                    System.out.println("Sending message in main error: " + e.toString());
                 }
                 lsn++; // Increase the lsn for next packet
             }
             // After the end of the cycle we finished broadcasting (messages will eventually be sent): we can signal it
-            System.out.println("Signaling end of broadcasting messages");
+            finishedBroadcasting();
+        }
+    }
+
+    /**
+     * Signal the coordinator that every message was broadcast
+     */
+    private void finishedBroadcasting() {
+        System.out.println("Signaling end of broadcasting messages");
+        if (coordinator != null)
             coordinator.finishedBroadcasting();
+    }
+
+    /**
+     * Create the message with the given lsn and log it as broadcasted
+     * @param lsn lsn of the message
+     * @return the message (pid and lsn as header info + the vector clock)
+     */
+    private MessagePacket newMessage(int lsn) {
+        int[] W;
+        synchronized (lockV) {
+            // Prepare vector clock W to send
+            W = sparseVC(lsn);
+            synchronized (out) {
+                // Directly add the message as broadcasted, even if we fail before this is done
+                // Doing it here avoid the edge case where the delivery thread put the message
+                // as delivered immediately after we copied the VC but before we put it in broadcast
+                // Creating a causal relationship in the output that do not exist
+                out.broadcast(lsn);
+            }
         }
+        recorder.broadcast(lsn);
+        broadcastCount.inc();
+        return new MessagePacket(id, lsn, W);
+    }
+
+    /**
+     * Build the sparse vector clock W of a message to send: pairs (pid, lsn) one after the other
+     * Only the entries that can be above the initial value 1 are there: the process lsn and the processes
+     * influencing it (every other entry of vcSend is always 1, which is <= any vcRec), so the size
+     * depends on the number of influences and not on the number of processes
+     * Must be called holding lockV
+     * @param lsn lsn of the message
+     * @return the sparse vector clock
+     */
+    private int[] sparseVC(int lsn) {
+        int[] W = new int[2 * (influences.size() + 1)];
+        int len = 0;
+        // Put process lsn inside W clock
+        W[len++] = id;
+        W[len++] = lsn;
+        for (int pid: influences) {
+            // Skip the entries still at the initial value (nothing delivered from pid yet)
+            if (pid == id || vcSend[pid - 1] <= 1)
+                continue;
+            W[len++] = pid;
+            W[len++] = vcSend[pid - 1];
+        }
+        return len == W.length ? W : Arrays.copyOf(W, len);
     }
 
     /**
@@ -100,27 +164,10 @@ public class LCausal {
      * Class (i.e. thread) that will perform the message delivery
      */
     private class Receive extends Thread {
-
-
-        /**
-         * Check that the vector clock W associated to a message is deliverable by comparing it
-         * with the vector clock of received messages
-         * @param W Vector Clock to consider
-         * @return true if W <= VcRec, else otherwise
-         */
-        private boolean deliverableVC (int[] W) {
-            for (int i = 0; i < W.length; i++) {
-                if (W[i] > vcRec[i])
-                    return false; // At least one element is >, return false
-            }
-            return true; // All elements are <=
-        }
-
         /**
          * Run receiver thread
          * This thread will check that for every message delivered from URB
-         * if we can actually deliver it or no, keeping the messages to deliver in the pending map
-         * and removing from that map the one we can deliver.
+         * if we can actually deliver it or no (see receiveBatch)
          */
         @Override
         public void run() {
@@ -136,57 +183,114 @@ public class LCausal {
                 // Add everything you can from the queue
                 gotPacks.add(got);
                 messageDeliveredDown.drainTo(gotPacks);
-                // Save from who we delivered something at URB (we check only these because we may deliver something)
-                HashSet<Integer> pids = new HashSet<>();
-                for (MessagePacket gotPack: gotPacks) {
-                    // Get [pid, MessagePacket] array and add pid to pids and message to the pending of that pid
-                    String[] gotSplit = gotPack.getMessage().split(" ");
-                    int pid = Integer.parseInt(gotSplit[0]);
-                    pids.add(pid);
-                    HashSet<MessagePacket> messagePackets = pending.getOrDefault(pid, new HashSet<>());
-                    messagePackets.add(gotPack);
-                    pending.put(pid, messagePackets);
-                }
-                // Cycle over the pids
-                for (int pid: pids) {
-                    // Save in this list all the message we can deliver in this round
-                    List<MessagePacket> allDelivers = new LinkedList<>();
-                    while (true) {
-                        // Check if we can deliver something from the pid
-                        Optional<MessagePacket> toDeliver = pending.get(pid).stream()
-                                .filter(x -> deliverableVC(x.getW()))
-                                .findFirst();
-                        // If we can't deliver anything anymore
-                        if(toDeliver.isEmpty()) {
-                            // If we can deliver at least 1 message
-                            if (allDelivers.size()!=0) {
-                                // Send the messages for delivery in the queue
-                                messageToDeliverUp.addAll(allDelivers.stream()
-                                                .map(MessagePacket::getMessage)
-                                                .collect(Collectors.toList()));
-                            }
-                            break;
-                        }
-                        else {
-                            // If we can deliver the message
-                            vcRec[pid-1]++; // Save that we received a message for that pid by increasing its lsn
-                            if (influences.contains(pid)) {
-                                // If the pid influences us, save the influence in vcSend by increasing its lsn
-                                // This way all the other processes will know that they have to deliver this message
-                                // before delivering anything from this process
-                                synchronized (lockV) {
-                                    vcSend[pid-1]++;
-                                }
-                            }
-                            // Save the message to be delivered later on in the batch
-                            // and remove it from the pending list
-                            allDelivers.add(toDeliver.get());
-                            pending.get(pid).remove(toDeliver.get());
-                        }
-                    }
+                // If we can deliver at least 1 message, send the messages for delivery in the queue
+                List<MessagePacket> allDelivers = receiveBatch(gotPacks);
+                if (allDelivers.size()!=0)
+                    messageToDeliverUp.addAll(allDelivers);
+            }
+        }
+    }
+
+    /**
+     * Check that the vector clock W associated to a message is deliverable by comparing it
+     * with the vector clock of received messages
+     * @param W sparse Vector Clock to consider (pairs pid, lsn; missing entries are 1)
+     * @return -1 if W <= VcRec, otherwise the position i of the first pair with W[i+1] > VcRec[W[i]-1]
+     * (what the message waits for)
+     */
+    private int blockingVC(int[] W) {
+        for (int i = 0; i < W.length; i += 2) {
+            if (W[i + 1] > vcRec[W[i] - 1])
+                return i; // At least one element is >, the message is blocked
+        }
+        return -1; // All elements are <=
+    }
+
+    /**
+     * Process a batch of messages delivered from URB, keeping the messages to deliver in the pending map
+     * and removing from that map the one we can deliver.
+     * Only the next message of an origin is checked, when it arrives or when the entry of vcRec
+     * it was blocked on advances (so every delivery can wake up the messages waiting for it)
+     * Package-private for the benchmarks
+     * @param gotPacks messages delivered from URB
+     * @return the messages to deliver to Main, in delivery order
+     */
+    List<MessagePacket> receiveBatch(List<MessagePacket> gotPacks) {
+        long start = System.nanoTime();
+        // Origins whose next message must be checked
+        ArrayDeque<Integer> toCheck = new ArrayDeque<>();
+        for (MessagePacket gotPack: gotPacks) {
+            // Add the message to the pending of its origin and check it if it's the next one to deliver
+            int pid = gotPack.getOrigin();
+            pending.get(pid).put(gotPack.getLsn(), gotPack);
+            if (gotPack.getLsn() == vcRec[pid-1])
+                toCheck.add(pid);
+        }
+        // Save in this list all the message we can deliver in this round
+        List<MessagePacket> allDelivers = new LinkedList<>();
+        while (!toCheck.isEmpty()) {
+            int pid = toCheck.poll();
+            // Messages from pid are delivered in lsn order, so the only one we can deliver is the next one
+            // (lsn = vcRec[pid-1])
+            MessagePacket toDeliver = pending.get(pid).peek();
+            if (toDeliver == null)
+                continue;
+            int blocking = blockingVC(toDeliver.getW());
+            if (blocking >= 0) {
+                // Not deliverable: wait until the blocking entry of vcRec reaches the lsn in W
+                int[] W = toDeliver.getW();
+                waiting.get(W[blocking])
+                        .computeIfAbsent(W[blocking + 1], k -> new LinkedList<>())
+                        .add(pid);
+                continue;
+            }
+            // If we can deliver the message
+            vcRec[pid-1]++; // Save that we received a message for that pid by increasing its lsn
+            if (influences.contains(pid)) {
+                // If the pid influences us, save the influence in vcSend by increasing its lsn
+                // This way all the other processes will know that they have to deliver this message
+                // before delivering anything from this process
+                synchronized (lockV) {
+                    vcSend[pid-1]++;
                 }
             }
+            // Save the message to be delivered later on in the batch
+            // and remove it from the pending buffer
+            allDelivers.add(toDeliver);
+            recorder.deliver(BenchmarkRecorder.Layer.lcausal, pid, toDeliver.getLsn());
+            pending.get(pid).poll();
+            // Check the next message of pid and the ones that were waiting for this one
+            toCheck.add(pid);
+            List<Integer> woken = waiting.get(pid).remove(vcRec[pid-1]);
+            if (woken != null)
+                toCheck.addAll(woken);
+        }
+        deliveredCount.add(allDelivers.size());
+        batchTime.record(System.nanoTime() - start);
+        return allDelivers;
+    }
+
+    /**
+     * Run one round of the event loop: broadcast the messages the window allows,
+     * then run a round of the layers below and process what they delivered
+     * @return the messages to deliver to Main, in delivery order
+     */
+    public List<MessagePacket> step() {
+        List<MessagePacket> gotPacks = new LinkedList<>();
+        // Broadcast until Perfect Link layer says it's not possible anymore
+        List<MessagePacket> toBroadcast = new LinkedList<>();
+        int windowLimit = urb.getWindowLimit();
+        while (nextLsn <= m && nextLsn <= windowLimit)
+            toBroadcast.add(newMessage(nextLsn++));
+        if (!toBroadcast.isEmpty())
+            gotPacks.addAll(urb.broadcastBatch(toBroadcast));
+        if (nextLsn > m && !signaled) {
+            // Every message was given to URB (they will eventually be sent): we can signal it
+            finishedBroadcasting();
+            signaled = true;
         }
+        gotPacks.addAll(urb.step());
+        return gotPacks.isEmpty() ? new LinkedList<>() : receiveBatch(gotPacks);
     }
 
     /**
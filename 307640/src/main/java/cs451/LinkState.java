@@ -0,0 +1,122 @@
+package cs451;
+
+import java.util.HashMap;
+import java.util.Objects;
+
+/**
+ * State of the Perfect Link towards one process: the sliding windows, the lsns given to URB packets,
+ * the packets waiting for an ACK with their retransmission timers, and the retransmission time
+ * Every process has its own state and its own lock (the state object itself), so the sender, the ACKChecker
+ * and the receiver only contend when they work on the same process. Not thread safe by itself:
+ * access it holding synchronized (state)
+ */
+public class LinkState {
+    private final Window windowLCausal = new Window(Constants.WINDOW_SIZE); // Window for LCausal packets
+    private final Window windowURB = new Window(Constants.WINDOW_SIZE); // Window for URB packets
+    private final HashMap<Packet, Integer> URBlsn = new HashMap<>(); // Lsn of each URB packet sent to the process
+    private int URBlsnCount = 0; // Last lsn given to a URB packet
+    // Packets waiting for an ACK by (type, lsn) -> time of the last send and number of sends
+    private final InFlightTable toRecAck = new InFlightTable(128);
+    // Retransmission timers of the packets in toRecAck, started at every send
+    private final TimerWheel timers;
+    private long RTO = 1000L*((long) Math.pow(10, 6)); // Retransmission time (like TCP), start with 1 second
+
+    /**
+     * Create the state of the link to a process
+     * @param now current time
+     */
+    public LinkState(long now) {
+        this.timers = new TimerWheel(Constants.TIMER_WHEEL_SLOTS, Constants.TIMER_TICK, now);
+    }
+
+    /**
+     * @param type packet type
+     * @return the window of the packet type
+     */
+    public Window getWindow(Packet.packType type) {
+        return type == Packet.packType.URB ? windowURB : windowLCausal;
+    }
+
+    /**
+     * Get the lsn of a URB packet, or give it the next one if it's the first time we see the packet
+     * @param p the URB packet
+     * @return the packet lsn
+     */
+    public int getURBLsn(Packet p) {
+        Integer lsn = URBlsn.get(p);
+        if (lsn == null) {
+            lsn = ++URBlsnCount; // New packet: new lsn
+            URBlsn.put(p, lsn);
+        }
+        return lsn;
+    }
+
+    /**
+     * @return the packets waiting for an ACK
+     */
+    public InFlightTable getToRecAck() {
+        return toRecAck;
+    }
+
+    /**
+     * @return the retransmission timers
+     */
+    public TimerWheel getTimers() {
+        return timers;
+    }
+
+    /**
+     * @return the retransmission time
+     */
+    public long getRTO() {
+        return RTO;
+    }
+
+    /**
+     * @param RTO the new retransmission time
+     */
+    public void setRTO(long RTO) {
+        this.RTO = RTO;
+    }
+
+    /**
+     * Check equality
+     * @param o Another object
+     * @return true/false if objects are or not the same
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        LinkState linkState = (LinkState) o;
+        return URBlsnCount == linkState.URBlsnCount &&
+                RTO == linkState.RTO &&
+                Objects.equals(windowLCausal, linkState.windowLCausal) &&
+                Objects.equals(windowURB, linkState.windowURB) &&
+                Objects.equals(URBlsn, linkState.URBlsn) &&
+                Objects.equals(toRecAck, linkState.toRecAck) &&
+                Objects.equals(timers, linkState.timers);
+    }
+
+    /**
+     * @return hashcode
+     */
+    @Override
+    public int hashCode() {
+        return Objects.hash(windowLCausal, windowURB, URBlsn, URBlsnCount, toRecAck, timers, RTO);
+    }
+
+    /**
+     * @return string link state representation
+     */
+    @Override
+    public String toString() {
+        return "LinkState{" +
+                "windowLCausal=" + windowLCausal +
+                ", windowURB=" + windowURB +
+                ", URBlsnCount=" + URBlsnCount +
+                ", toRecAck=" + toRecAck +
+                ", RTO=" + RTO +
+                '}';
+    }
+}
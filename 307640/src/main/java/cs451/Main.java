@@ -2,7 +2,6 @@ package cs451;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.util.*;
@@ -13,28 +12,36 @@ public class Main {
     private static Coordinator coordinator;
     private static int m;
     private static HashSet<Integer> influences = new HashSet<>();
-    protected static LinkedList<String> out = new LinkedList<>();
-    private static final LinkedBlockingQueue<String> messageDelivered = new LinkedBlockingQueue<>();
-    private static final LinkedList<String> recPack = new LinkedList<>();
-    protected static final Object lockOut = new Object();
+    protected static OutputLog out; // Log of the events, written to the output file as they happen
+    private static BenchmarkRecorder recorder; // Benchmark recorder, written in output + ".bench" at the end
+    private static final Metrics metrics = new Metrics(); // Metrics of the layers, dumped in output + ".metrics"
+    // Tracer of the queues between the layers, written in output + ".trace" at the end
+    private static final Tracer tracer = new Tracer(Constants.TRACE_SAMPLE);
+    private static final LinkedBlockingQueue<MessagePacket> messageDelivered = tracer.queue("lcausal_to_main");
+    private static int recPack = 0; // Number of messages delivered
+    private static final Object lockOut = new Object(); // Lock of the out reference (the log is locked to write it)
 
     private static void handleSignal() {
 
         // Log everything it was delivered
         System.out.println("Immediately stopping network packet processing.");
         System.out.println("Writing output.");
-        System.out.println("Total message delivered: " + recPack.size());
+        System.out.println("Total message delivered: " + recPack);
 
-        try (FileWriter fw = new FileWriter(outName)) {
-            // Avoid concurrent writing of packets in delivering
-            synchronized (lockOut) {
-                for (String s: out) {
-                    fw.write(s + "\n");
+        // Avoid concurrent writing of packets in delivering, and flush what is still to be written
+        synchronized (lockOut) {
+            if (out != null) {
+                synchronized (out) {
+                    out.close();
                 }
             }
-        } catch (IOException e) {
-            System.out.println("Impossible to write " + e.toString());
         }
+        if (recorder != null)
+            recorder.write(outName + ".bench");
+        if (Constants.METRICS && outName != null)
+            metrics.write(outName + ".metrics");
+        if (outName != null)
+            tracer.write(outName + ".trace");
     }
 
     private static void initSignalHandlers() {
@@ -65,14 +72,27 @@ public class Main {
         System.out.println("Barrier: " + parser.barrierIp() + ":" + parser.barrierPort());
         System.out.println("Signal: " + parser.signalIp() + ":" + parser.signalPort());
         System.out.println("Output: " + parser.output());
+        System.out.println("Transport: " + Transport.name() + (Constants.EVENT_LOOP ? " (event loop)" : ""));
 
         // Load number of messages to broadcast
         outName = parser.output();
         m = 0;
         if (parser.hasConfig()) {
             System.out.println("Config: " + parser.config());
-            parseConfig(parser.config(), parser.myId());
+            m = parseConfig(parser.config(), parser.myId(), influences);
+        }
+        // Open the output log, with room for every broadcast and delivery
+        System.out.println("Output log: " + Constants.OUTPUT_LOG);
+        try {
+            synchronized (lockOut) {
+                out = OutputLog.open(outName, (long) m * (parser.hosts().size() + 1));
+            }
+        } catch (IOException e) {
+            System.out.println("Impossible to write " + e.toString());
         }
+        recorder = new BenchmarkRecorder(parser.hosts().size(), m, Constants.BENCH_SAMPLE);
+        if (Constants.METRICS)
+            metrics.startReporter(outName + ".metrics", Constants.METRICS_PERIOD);
         // Set up coordinator
         coordinator = new Coordinator(parser.myId(), parser.barrierIp(), parser.barrierPort(), parser.signalIp(), parser.signalPort());
         System.out.println("Waiting for all processes for finish initialization");
@@ -90,9 +110,12 @@ public class Main {
     /**
      * Get number of messages to deliver from configuration file
      * @param config: configuration file path
-     * @return number of messages to broadcast, processes influencing the current process
+     * @param id: id of the process
+     * @param influences: set where to add the processes influencing the process
+     * @return number of messages to broadcast
      */
-    private static void parseConfig(String config, int id) {
+    protected static int parseConfig(String config, int id, Set<Integer> influences) {
+        int m = 0;
         Scanner input = null;
         try {
             input = new Scanner(new File(config));
@@ -117,16 +140,49 @@ public class Main {
             i+=1;
         }
         input.close();
+        return m;
     }
 
 
+    /**
+     * Deliver a batch of messages delivered from low levels
+     * @param newGot the messages, in delivery order
+     */
+    private static void deliver(List<MessagePacket> newGot) {
+        // Add the messages as delivered
+        synchronized (out) {
+            for (MessagePacket got: newGot)
+                out.deliver(got.getOrigin(), got.getLsn());
+        }
+        // Count the messages as received to print some control messages
+        recPack += newGot.size();
+        if (recPack%100==0)
+            System.out.println("Delivered " + recPack + " packets");
+    }
+
     /**
      * Broadcast LCausal messages
      * @param parser the argument parser
      */
     private static void LCausalBroadcast(Parser parser) {
         // Start the LCausal
-        LCausal lCausal = new LCausal(parser.hosts(), parser.myId(), messageDelivered, coordinator, m, influences);
+        LCausal lCausal;
+        try {
+            lCausal = new LCausal(parser.hosts(), parser.myId(), messageDelivered, coordinator, out, recorder, metrics,
+                    tracer, m, influences);
+        } catch (IOException e) {
+            System.out.println("Impossible to open the transports: " + e.toString());
+            System.exit(1);
+            return;
+        }
+        if (Constants.EVENT_LOOP) {
+            // Run the whole stack on this thread (will run forever)
+            while (true) {
+                List<MessagePacket> newGot = lCausal.step();
+                if (!newGot.isEmpty())
+                    deliver(newGot);
+            }
+        }
 
         /**
         * Deliver class to get messages delivered from low levels
@@ -136,25 +192,17 @@ public class Main {
             public void run() {
                 while (true) {
                     // Wait until a package is ready to be delivered
-                    String gotPack = null;
+                    MessagePacket gotPack = null;
                     try {
                         gotPack = messageDelivered.take();
                     } catch (InterruptedException e) {
                         System.out.println("Getting message in main error: " + e.toString());
                     }
                     // Get everything in the queue to deliver a batch
-                    List<String> newGot = new LinkedList<>();
+                    List<MessagePacket> newGot = new LinkedList<>();
                     newGot.add(gotPack);
                     messageDelivered.drainTo(newGot);
-                    // Add the messages as delivered
-                    synchronized (lockOut) {
-                        for (String got: newGot)
-                            out.add("d " + got);
-                    }
-                    // Add the messages as received to print some control messages
-                    recPack.addAll(newGot);
-                    if (recPack.size()%100==0)
-                        System.out.println("Delivered " + recPack.size() + " packets");
+                    deliver(newGot);
                 }
             }
         }
@@ -0,0 +1,137 @@
+package cs451;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+
+/**
+ * Output log writing the events as fixed-width binary records in a memory-mapped file:
+ *   type (1 byte, 'b' or 'd') | pid (int, 0 for a broadcast) | lsn (int)
+ * The file is mapped with room for the expected number of events (another region is mapped if they are more),
+ * so logging an event is just writing 9 bytes in memory: no string, no system call, no thread.
+ * The pages are written back by the OS, also if the process is killed; at close the file is only cut
+ * to the records written. A file not closed ends with zeros (type 0 marks the end)
+ */
+public class MappedOutputLog implements OutputLog {
+    public static final int RECORD_SIZE = 9; // Bytes of a record
+    public static final byte BROADCAST = 'b'; // Type of a broadcast record
+    public static final byte DELIVER = 'd'; // Type of a delivery record
+    private final String outName; // Output file
+    private final FileChannel channel; // Channel of the output file
+    private final long regionSize; // Bytes mapped at a time (multiple of RECORD_SIZE)
+    private MappedByteBuffer region; // Region of the file being written
+    private long regionStart = 0; // Position of the region in the file
+    private boolean closed = false; // True after close(), events logged later are not written
+
+    /**
+     * Create the output file and map it
+     * @param outName output file path
+     * @param maxEvents number of events expected
+     * @throws IOException if the file can't be created or mapped
+     */
+    public MappedOutputLog(String outName, long maxEvents) throws IOException {
+        this.outName = outName;
+        this.channel = FileChannel.open(Paths.get(outName), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        // A mapped region can't be bigger than 2GB
+        long records = Math.min(Math.max(maxEvents, 1024), Integer.MAX_VALUE / RECORD_SIZE);
+        this.regionSize = records * RECORD_SIZE;
+        this.region = channel.map(FileChannel.MapMode.READ_WRITE, regionStart, regionSize);
+    }
+
+    /**
+     * Write a record, mapping the next region of the file if the current one is full
+     * @param type record type
+     * @param pid process id
+     * @param lsn message lsn
+     */
+    private void put(byte type, int pid, int lsn) {
+        if (closed)
+            return;
+        if (!region.hasRemaining()) {
+            try {
+                regionStart += regionSize;
+                region = channel.map(FileChannel.MapMode.READ_WRITE, regionStart, regionSize);
+            } catch (IOException e) {
+                System.out.println("Impossible to write " + e.toString());
+                closed = true;
+                return;
+            }
+        }
+        region.put(type).putInt(pid).putInt(lsn);
+    }
+
+    /**
+     * Log the broadcast of a message
+     * @param lsn lsn of the message
+     */
+    @Override
+    public void broadcast(int lsn) {
+        put(BROADCAST, 0, lsn);
+    }
+
+    /**
+     * Log the delivery of a message
+     * @param pid origin of the message
+     * @param lsn lsn of the message
+     */
+    @Override
+    public void deliver(int pid, int lsn) {
+        put(DELIVER, pid, lsn);
+    }
+
+    /**
+     * Close the log: events logged from now on are not written, the file is cut to the records written
+     */
+    @Override
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            channel.truncate(regionStart + region.position());
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("Impossible to write " + e.toString());
+        }
+    }
+
+    /**
+     * Check equality
+     * @param o Another object
+     * @return true/false if objects are or not the same
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        MappedOutputLog that = (MappedOutputLog) o;
+        return regionSize == that.regionSize &&
+                regionStart == that.regionStart &&
+                closed == that.closed &&
+                Objects.equals(outName, that.outName);
+    }
+
+    /**
+     * @return hashcode
+     */
+    @Override
+    public int hashCode() {
+        return Objects.hash(outName, regionSize, regionStart, closed);
+    }
+
+    /**
+     * @return string log representation
+     */
+    @Override
+    public String toString() {
+        return "MappedOutputLog{" +
+                "outName='" + outName + '\'' +
+                ", written=" + (regionStart + region.position()) / RECORD_SIZE +
+                ", closed=" + closed +
+                '}';
+    }
+}
@@ -1,69 +1,164 @@
 package cs451;
 
-import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Objects;
 
 /**
- * Class to wrap message (pid, lsn) and the vector clock to be sent (W)
+ * Class to wrap message (origin pid, relayer pid, lsn) and the vector clock to be sent (W)
  * Can be extended with any other information
+ * W is sparse: pairs (pid, lsn) one after the other, for the entries that are not at the initial value
+ *
+ * Wire layout (every integer is an unsigned varint, see putVarInt):
+ *   origin | relayer | lsn | |W| | W[0] ... W[|W|-1]
+ * The relayer is 0 when the message was not relayed, |W| is 0 when no vector clock is attached
+ * The Perfect Link puts its own header (type, lsn on the link, retransmission number) in front of it
  */
-public class MessagePacket implements Serializable {
-    private String message; // Message to be sent -> pid, lsn
-    private int[] W; // Vector clock
+public class MessagePacket {
+    private final int origin; // Process that broadcast the message
+    private final int relayer; // Process that relayed the message (0 if not relayed)
+    private final int lsn; // Message lsn at the origin
+    private final int[] W; // Sparse vector clock (pairs pid, lsn)
+
+    /**
+     * Build a MessagePacket that was not relayed
+     * @param origin pid of the broadcaster
+     * @param lsn message lsn
+     * @param w vector clock
+     */
+    public MessagePacket(int origin, int lsn, int[] w) {
+        this(origin, 0, lsn, w);
+    }
 
     /**
      * Build a MessagePacket
-     * @param message the message to be sent
+     * @param origin pid of the broadcaster
+     * @param relayer pid of the relayer (0 if not relayed)
+     * @param lsn message lsn
      * @param w vector clock
      */
-    public MessagePacket(String message, int[] w) {
-        this.message = message;
+    public MessagePacket(int origin, int relayer, int lsn, int[] w) {
+        this.origin = origin;
+        this.relayer = relayer;
+        this.lsn = lsn;
         W = w;
     }
 
     /**
-     * @return the message
+     * @return the message as text: "origin lsn" or "relayer origin lsn" if relayed
      */
     public String getMessage() {
-        return message;
+        if (relayer == 0)
+            return origin + " " + lsn;
+        return relayer + " " + origin + " " + lsn;
     }
 
     /**
-     * @return the vector clock
+     * @return pid of the broadcaster
+     */
+    public int getOrigin() {
+        return origin;
+    }
+
+    /**
+     * @return pid of the relayer (0 if not relayed)
+     */
+    public int getRelayer() {
+        return relayer;
+    }
+
+    /**
+     * @return pid of the process that put the message on the network (relayer if relayed, origin otherwise)
+     */
+    public int getSender() {
+        return relayer == 0 ? origin : relayer;
+    }
+
+    /**
+     * @return message lsn at the origin
+     */
+    public int getLsn() {
+        return lsn;
+    }
+
+    /**
+     * @return the sparse vector clock (pairs pid, lsn)
      */
     public int[] getW() {
         return W;
     }
 
     /**
-     * Serialize a MessagePacket object into a byte array to be sent
-     * From https://stackoverflow.com/a/3736247
-     * @return serialized object as byte array
-     * @throws IOException if the serialization can't be done
+     * Serialize the message into the buffer
+     * @param buf buffer to write into (written from its current position)
      */
-    public byte[] serialize() throws IOException {
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        ObjectOutputStream os = new ObjectOutputStream(out);
-        os.writeObject(this);
-        return out.toByteArray();
+    public void serialize(ByteBuffer buf) {
+        putVarInt(buf, origin);
+        putVarInt(buf, relayer);
+        putVarInt(buf, lsn);
+        if (W == null) {
+            putVarInt(buf, 0);
+            return;
+        }
+        putVarInt(buf, W.length);
+        for (int w: W)
+            putVarInt(buf, w);
     }
 
     /**
-     * Deserialize a byte array into a MessagePacket
-     * From https://stackoverflow.com/a/3736247
-     * @param data byte array
+     * Deserialize a MessagePacket from the buffer
+     * @param buf buffer positioned on the origin field
      * @return the corresponding MessagePacket
-     * @throws IOException if the deserialization can't be done
+     * @throws BufferUnderflowException if the buffer is truncated
+     */
+    public static MessagePacket deserialize(ByteBuffer buf) {
+        int origin = getVarInt(buf);
+        int relayer = getVarInt(buf);
+        int lsn = getVarInt(buf);
+        int len = getVarInt(buf);
+        int[] w = null;
+        if (len > 0) {
+            w = new int[len];
+            for (int i = 0; i < len; i++)
+                w[i] = getVarInt(buf);
+        }
+        return new MessagePacket(origin, relayer, lsn, w);
+    }
+
+    /**
+     * Write a non negative int as a varint (7 bits per byte, high bit set if more bytes follow)
+     * @param buf buffer to write into
+     * @param value value to write
+     */
+    public static void putVarInt(ByteBuffer buf, int value) {
+        while ((value & ~0x7F) != 0) {
+            buf.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buf.put((byte) value);
+    }
+
+    /**
+     * Read a varint written by putVarInt
+     * @param buf buffer to read from
+     * @return the value read
+     * @throws BufferUnderflowException if the buffer is truncated
      */
-    public static MessagePacket deserialize(byte[] data) throws IOException, ClassNotFoundException {
-        ByteArrayInputStream in = new ByteArrayInputStream(data);
-        ObjectInputStream is = new ObjectInputStream(in);
-        return (MessagePacket) is.readObject();
+    public static int getVarInt(ByteBuffer buf) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buf.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0 && shift < 35);
+        return value;
     }
 
     /**
-     * Check equality
+     * Check equality (the vector clock is not part of the message identity)
      * @param o Another object
      * @return true/false if objects are or not the same
      */
@@ -72,7 +167,9 @@ public class MessagePacket implements Serializable {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         MessagePacket that = (MessagePacket) o;
-        return message.equals(that.message);
+        return origin == that.origin &&
+                relayer == that.relayer &&
+                lsn == that.lsn;
     }
 
     /**
@@ -80,7 +177,7 @@ public class MessagePacket implements Serializable {
      */
     @Override
     public int hashCode() {
-        return Objects.hash(message);
+        return Objects.hash(origin, relayer, lsn);
     }
 
     /**
@@ -89,7 +186,7 @@ public class MessagePacket implements Serializable {
     @Override
     public String toString() {
         return "MessagePacket{" +
-                "message='" + message + '\'' +
+                "message='" + getMessage() + '\'' +
                 ", W=" + Arrays.toString(W) +
                 '}';
     }
@@ -0,0 +1,240 @@
+package cs451;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Registry of the metrics of a process, shared by every layer (names start with the layer, the peer is a label):
+ * - counters: lock-free (LongAdder), incremented on the hot paths
+ * - histograms: lock-free log-linear buckets like HdrHistogram (about 3% precision), e.g. for latencies
+ * - gauges: read only when the metrics are dumped (sizes of queues, windows, pending sets...)
+ * The metrics are dumped as text, a snapshot after the other: periodically by a reporter thread
+ * and once at the end of the run (see Constants.METRICS)
+ */
+public class Metrics {
+    private final ConcurrentSkipListMap<String, Counter> counters = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<String, Histogram> histograms = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+
+    /**
+     * Counter of events
+     */
+    public static class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void inc() {
+            value.increment();
+        }
+
+        /**
+         * @param n number of events
+         */
+        public void add(long n) {
+            value.add(n);
+        }
+
+        /**
+         * @return number of events counted
+         */
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    /**
+     * Histogram of non negative values: values below 2^SUB_BITS have their own bucket, then every power of 2
+     * is split in 2^SUB_BITS buckets (so a bucket is at most 1/2^SUB_BITS of its values wide)
+     */
+    public static class Histogram {
+        private static final int SUB_BITS = 5;
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+        private final AtomicLongArray buckets = new AtomicLongArray((64 - SUB_BITS) * SUB_COUNT);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        /**
+         * @param value a value
+         * @return index of the bucket of the value
+         */
+        private static int bucketOf(long value) {
+            if (value < SUB_COUNT)
+                return (int) value;
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+            return shift * SUB_COUNT + (int) (value >>> shift); // value >>> shift is in [SUB_COUNT, 2*SUB_COUNT)
+        }
+
+        /**
+         * @param bucket index of a bucket
+         * @return highest value of the bucket
+         */
+        private static long highestOf(int bucket) {
+            if (bucket < 2 * SUB_COUNT)
+                return bucket;
+            int shift = bucket / SUB_COUNT - 1;
+            long low = (long) (bucket % SUB_COUNT + SUB_COUNT) << shift;
+            return low + (1L << shift) - 1;
+        }
+
+        /**
+         * @param value value to record (negative values count as 0)
+         */
+        public void record(long value) {
+            value = Math.max(value, 0);
+            buckets.incrementAndGet(bucketOf(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            max.accumulateAndGet(value, Math::max);
+        }
+
+        /**
+         * @return number of values recorded
+         */
+        public long getCount() {
+            return count.get();
+        }
+
+        /**
+         * @param p percentile (in [0, 1])
+         * @return highest value of the bucket of the percentile (0 if nothing was recorded)
+         */
+        public long getPercentile(double p) {
+            long total = count.get();
+            if (total == 0)
+                return 0;
+            long rank = Math.max((long) Math.ceil(p * total), 1);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank)
+                    return Math.min(highestOf(i), max.get());
+            }
+            return max.get();
+        }
+
+        /**
+         * @return string histogram summary
+         */
+        @Override
+        public String toString() {
+            long total = count.get();
+            return "count=" + total +
+                    " mean=" + (total == 0 ? 0 : sum.get() / total) +
+                    " p50=" + getPercentile(0.5) +
+                    " p99=" + getPercentile(0.99) +
+                    " p999=" + getPercentile(0.999) +
+                    " max=" + max.get();
+        }
+    }
+
+    /**
+     * Class (i.e. thread) that dumps the metrics periodically
+     */
+    private class Reporter extends Thread {
+        private final String outName; // File where the metrics are appended
+        private final long period; // Time between two dumps (milliseconds)
+
+        /**
+         * @param outName file where the metrics are appended
+         * @param period time between two dumps (milliseconds)
+         */
+        Reporter(String outName, long period) {
+            this.outName = outName;
+            this.period = period;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    Thread.sleep(period);
+                } catch (InterruptedException e) {
+                    System.out.println("Interrupted metrics reporter: " + e.toString());
+                }
+                write(outName);
+            }
+        }
+    }
+
+    /**
+     * @param name name of the counter
+     * @return the counter (created the first time)
+     */
+    public Counter counter(String name) {
+        return counters.computeIfAbsent(name, k -> new Counter());
+    }
+
+    /**
+     * @param name name of the histogram
+     * @return the histogram (created the first time)
+     */
+    public Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, k -> new Histogram());
+    }
+
+    /**
+     * Register a gauge (it replaces the one with the same name)
+     * @param name name of the gauge
+     * @param gauge function reading the value (called by the thread dumping the metrics)
+     */
+    public void gauge(String name, LongSupplier gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Dump a snapshot of the metrics: a line with the time, then a line by metric
+     * @param writer where to write
+     * @throws IOException if it can't be written
+     */
+    public void dump(Writer writer) throws IOException {
+        writer.write("# " + System.currentTimeMillis() + "\n");
+        for (Map.Entry<String, Counter> e: counters.entrySet())
+            writer.write("counter " + e.getKey() + " " + e.getValue().get() + "\n");
+        for (Map.Entry<String, LongSupplier> e: gauges.entrySet())
+            writer.write("gauge " + e.getKey() + " " + e.getValue().getAsLong() + "\n");
+        for (Map.Entry<String, Histogram> e: histograms.entrySet())
+            writer.write("histogram " + e.getKey() + " " + e.getValue() + "\n");
+    }
+
+    /**
+     * Append a snapshot of the metrics to a file
+     * @param outName path of the file
+     */
+    public synchronized void write(String outName) {
+        try (BufferedWriter fw = new BufferedWriter(new FileWriter(outName, true), 1 << 16)) {
+            dump(fw);
+        } catch (IOException e) {
+            System.out.println("Impossible to write " + e.toString());
+        }
+    }
+
+    /**
+     * Start dumping the metrics periodically
+     * @param outName file where the metrics are appended
+     * @param period time between two dumps (milliseconds)
+     */
+    public void startReporter(String outName, long period) {
+        new Reporter(outName, period).start();
+    }
+
+    /**
+     * @return string registry representation
+     */
+    @Override
+    public String toString() {
+        return "Metrics{" +
+                "counters=" + counters.size() +
+                ", histograms=" + histograms.size() +
+                ", gauges=" + gauges.size() +
+                '}';
+    }
+}
@@ -0,0 +1,47 @@
+package cs451;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * Render the binary output log of a run (see MappedOutputLog) in the text output format
+ * Usage: java -cp bin cs451.OutputConverter OUTPUT.bin OUTPUT
+ */
+public class OutputConverter {
+
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.out.println("Usage: OutputConverter BINARY_LOG OUTPUT");
+            return;
+        }
+        long events = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(args[0]), 1 << 16));
+             BufferedWriter fw = new BufferedWriter(new FileWriter(args[1]), 1 << 16)) {
+            while (true) {
+                byte type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException e) {
+                    break; // Log closed: the file ends after the last record
+                }
+                int pid = in.readInt();
+                int lsn = in.readInt();
+                if (type == MappedOutputLog.BROADCAST)
+                    fw.write("b " + lsn + "\n");
+                else if (type == MappedOutputLog.DELIVER)
+                    fw.write("d " + pid + " " + lsn + "\n");
+                else
+                    break; // Log not closed: the rest of the file was never written
+                events++;
+            }
+        } catch (IOException e) {
+            System.out.println("Impossible to convert " + e.toString());
+        }
+        System.out.println("Converted " + events + " events");
+    }
+}
@@ -0,0 +1,44 @@
+package cs451;
+
+import java.io.IOException;
+
+/**
+ * Log of the broadcast and delivery events of the process
+ * The implementation is chosen at startup with the system property cs451.output (see Constants.OUTPUT_LOG):
+ * - text: lines "b lsn" and "d pid lsn" streamed to the output file (default)
+ * - binary: fixed-width records in a memory-mapped file (output path + ".bin"), see OutputConverter to render the text
+ * Not thread safe: the callers keep the order of the events holding the lock of the log itself
+ */
+public interface OutputLog {
+
+    /**
+     * Open the output log chosen in Constants.OUTPUT_LOG
+     * @param outName output file path
+     * @param maxEvents number of events expected (space preallocated by the binary log)
+     * @return the output log
+     * @throws IOException if the file can't be created
+     */
+    static OutputLog open(String outName, long maxEvents) throws IOException {
+        if (Constants.OUTPUT_LOG.equals("binary"))
+            return new MappedOutputLog(outName + ".bin", maxEvents);
+        return new TextOutputLog(outName);
+    }
+
+    /**
+     * Log the broadcast of a message
+     * @param lsn lsn of the message
+     */
+    void broadcast(int lsn);
+
+    /**
+     * Log the delivery of a message
+     * @param pid origin of the message
+     * @param lsn lsn of the message
+     */
+    void deliver(int pid, int lsn);
+
+    /**
+     * Close the log: events logged from now on are not written, the ones before are all in the file after this
+     */
+    void close();
+}
@@ -2,47 +2,65 @@ package cs451;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
 
 
 /**
- * Perfect link implementation, consisting of 3 threads:
- * 1. Sender that send the "sendable messages" per process
+ * Perfect link implementation, consisting of 3 kinds of threads:
+ * 1. Senders that send the "sendable messages" per process (batched in datagrams of at most MAX_BATCH_SIZE bytes),
+ *    each one for a shard of the processes (Constants.SENDERS)
  * 2. ACKChecker to check which Ack still needs to be received and window resizing
- * 3. Receive that deliver something to URB or pass an ACK to the ACKChecker
+ * 3. Receivers that deliver something to URB or pass an ACK to the ACKChecker, each one on its own transport
+ *    bound to the process port with SO_REUSEPORT (Constants.RECEIVERS)
+ * In event loop mode (see Constants.EVENT_LOOP) no thread is started: the same work is done by step()
+ *
+ * Every packet type (LCausal, URB) has its own lsn on the link, with a sliding window per process.
+ * Wire layout of the frames batched in a datagram (integers are varints, type is the packet type ordinal):
+ *   DATA | type | lsn | rNum | MessagePacket
+ *   ACK | type | pid | cumAck | echoLsn | echoRNum | |sack| | sack bytes
+ * An ACK is cumulative (every lsn <= cumAck was received) plus a bitmap of the lsns received above it,
+ * and echoes the lsn and retransmission number of the last packet received to measure the RTT
+ * The windows and the packets in flight are kept by process (see LinkState), each with its own lock
  */
 public class PerfectLink {
 
     private final int id; // My id
     private final int myPort; // My port number
     private final HashMap<Integer, Integer> portMap; // Map process to the port used by that process
-    // Messages to send received from URB or from the ACKChecker
-    private final LinkedBlockingQueue<Packet> messageToSend;
     private final LinkedBlockingQueue<MessagePacket> messageToDeliver; // Message to deliver up to URB
-    // Queue used by the deliver thread to inform the ACKChecker of the ACKs received
-    private final LinkedBlockingQueue<PacketTimeRnum> recACKs = new LinkedBlockingQueue<>();
-    // We keep two different windows to improve performance, the LCausal window will be substituted by a window
-    // for any layer you'd want to put above URB in next implementation
-    private final ArrayList<Packet> packetToSendLCausal = new ArrayList<>(); // Packet to send of LCausal type
-    private final ArrayList<Packet> packetToSendURB = new ArrayList<>(); // Packet to send of URB type
-    private final HashMap<Integer, Window> windowLCausal = new HashMap<>(); // Window for LCausal packets
-    private final HashMap<Integer, Window> windowURB = new HashMap<>(); // Window for URB packets
-    // Map each URB packets to a lsn (different by process)
-    private final HashMap<Integer, HashMap<Packet, Integer>> URBlsn = new HashMap<>();
-    // Keep track of next lsn to send for URB (by proc)
-    private final HashMap<Integer, Integer> URBlsnCount = new HashMap<>();
+    // Queue used by the receivers to inform the ACKChecker of the ACKs received
+    private final LinkedBlockingQueue<SelectiveAck> recACKs;
+    // Windows, URB lsns, packets waiting for an ACK with their timers and RTO by process (pid-1)
+    // Each one is guarded by its own lock, so threads working on different processes don't contend
+    private final LinkState[] links;
     private final List<Host> hosts; // List of hosts
-    // Map each process to a map of packets -> each packet to a list of time in which it was sent
-    private final ArrayList<HashMap<Packet, ArrayList<Long>>> toRecAckProcess;
-    private DatagramSocket dsSend; // Socket to send messages
-    private DatagramSocket dsRec; // Socket to receive messages
-    private static final HashSet<MessagePacket> recMessage = new HashSet<>(); // Messages received
-    private static final Object lockAck = new Object(); // Lock on toReckAck Map
-    private static final Object lockURB = new Object(); // Lock on URB window and lsn maps
-    private static final Object lockLCausal = new Object(); // Lock on LCausal window
+    private final HashMap<Integer, InetSocketAddress> addressMap; // Map process to its socket address
+    private Transport[] transports; // Transports to send and receive datagrams (one by receiver)
+    private SelectableTransport selectable; // The transport of the event loop (null if the threads are used)
+    private final Send[] senders; // Senders, process pid is sent by senders[(pid-1) % senders.length]
+    private final Receive[] receivers; // Receivers, one by transport
+    private ACKChecker ackChecker; // The ACKChecker (its thread is not started in event loop mode)
+    // Number of LCausal messages that can be broadcast (max upper bound of the LCausal windows), set by the ACKChecker
+    private int windowLimit = Constants.WINDOW_SIZE;
+    private final Object lockSending = new Object(); // Lock waiting for windowLimit to grow
+    private final BenchmarkRecorder recorder; // Benchmark recorder of the process
+    // Metrics by process (pid-1): packets sent for the first time, sent again and ACKed, RTTs measured
+    private final Metrics.Counter[] sentCount;
+    private final Metrics.Counter[] retransmitCount;
+    private final Metrics.Counter[] ackedCount;
+    private final Metrics.Histogram[] rttHistograms;
+    private final Metrics.Counter deliveredCount; // Messages delivered to URB
+    // Receive windows by process, used to build the ACKs
+    // (the datagrams of a process go to the same receiver, the lock is there in case they don't)
+    private final HashMap<Integer, ReceiveWindow> recWindowLCausal = new HashMap<>();
+    private final HashMap<Integer, ReceiveWindow> recWindowURB = new HashMap<>();
+    private static final byte DATA = 0; // Frame carrying a message
+    private static final byte ACK = 1; // Frame carrying an ACK
+    private static final Packet.packType[] packTypes = Packet.packType.values(); // Packet types by ordinal
 
 
     /**
@@ -51,55 +69,240 @@ public class PerfectLink {
      * @param myPort port of this process
      * @param hosts list of hosts used
      * @param messageToDeliver queue to send message to the layer above (URB) for delivery
-     * @param messageToSend queue to receive message from the layer above (URB) for sending
+     * @param messageToSend queue to receive message from the layer above (URB) for sending (used by the first sender)
+     * @param recorder benchmark recorder of the process
+     * @param metrics metrics of the process
+     * @param tracer tracer of the queues of the process
+     * @throws IOException if the transports can't be opened
      */
     public PerfectLink(int id, int myPort, List<Host> hosts,
-                       LinkedBlockingQueue<Packet> messageToSend, LinkedBlockingQueue<MessagePacket> messageToDeliver) {
+                       LinkedBlockingQueue<Packet> messageToSend, LinkedBlockingQueue<MessagePacket> messageToDeliver,
+                       BenchmarkRecorder recorder, Metrics metrics, Tracer tracer) throws IOException {
         this.id = id;
         this.myPort = myPort;
-        this.messageToSend = messageToSend;
         this.messageToDeliver = messageToDeliver;
+        this.recACKs = tracer.queue("receiver_to_ackchecker");
+        this.recorder = recorder;
 
-        // Set up sending
-        try {
-            this.dsSend = new DatagramSocket();
-        } catch (SocketException e) {
-            System.out.println("Creating socket to send in send error: " + e.toString());
+        // Set up sending and receiving: a transport by receiver, sharing the port if there are more
+        int numReceivers = Constants.RECEIVERS;
+        if (numReceivers > 1 && !Transport.supportsReusePort()) {
+            System.out.println("SO_REUSEPORT not supported, using a single receiver");
+            numReceivers = 1;
         }
-        assert this.dsSend != null;
-
-        // Set up receiving
-        try {
-            this.dsRec = new DatagramSocket(this.myPort);
-        } catch (SocketException e) {
-            System.out.println("Creating socket to receive ACK in send error: " + e.toString());
+        openTransports(numReceivers);
+        if (Constants.EVENT_LOOP) {
+            if (!(transports[0] instanceof SelectableTransport))
+                throw new IllegalStateException("The event loop needs a selectable transport (nio or sim)");
+            selectable = (SelectableTransport) transports[0];
         }
-        assert this.dsRec != null;
 
         this.hosts = hosts;
         portMap = new HashMap<>();
-        toRecAckProcess = new ArrayList<>(hosts.size());
+        addressMap = new HashMap<>();
+        links = new LinkState[hosts.size()];
 
         // Set up all the control structures by process
         for (Host h: hosts) {
             portMap.put(h.getId(), h.getPort());
-            toRecAckProcess.add(h.getId()-1, new HashMap<>());
-            windowLCausal.put(h.getId(), new Window(Constants.WINDOW_SIZE));
-            windowURB.put(h.getId(), new Window(Constants.WINDOW_SIZE));
-            URBlsn.put(h.getId(), new HashMap<>());
-            URBlsnCount.put(h.getId(), 0);
+            addressMap.put(h.getId(), new InetSocketAddress(h.getIp(), h.getPort()));
+            links[h.getId()-1] = new LinkState(Clock.nanoTime());
+            recWindowLCausal.put(h.getId(), new ReceiveWindow());
+            recWindowURB.put(h.getId(), new ReceiveWindow());
+        }
+
+        // Set up senders and receivers, each sender sends on a transport (round robin)
+        senders = new Send[Constants.SENDERS];
+        for (int i = 0; i < senders.length; i++)
+            senders[i] = new Send(i == 0 ? messageToSend : tracer.queue("urb_to_pl{sender=" + i + "}"),
+                    transports[i % transports.length]);
+        receivers = new Receive[transports.length];
+        for (int i = 0; i < receivers.length; i++)
+            receivers[i] = new Receive(transports[i]);
+
+        // Metrics by process, and gauges of the state of the links and of the queues
+        sentCount = new Metrics.Counter[hosts.size()];
+        retransmitCount = new Metrics.Counter[hosts.size()];
+        ackedCount = new Metrics.Counter[hosts.size()];
+        rttHistograms = new Metrics.Histogram[hosts.size()];
+        deliveredCount = metrics.counter("pl.delivered");
+        for (Host h: hosts)
+            registerMetrics(metrics, h.getId());
+        for (int i = 0; i < senders.length; i++) {
+            LinkedBlockingQueue<Packet> queue = senders[i].messageToSend;
+            metrics.gauge("queue.urb_to_pl{sender=" + i + "}", queue::size);
         }
+        metrics.gauge("queue.receiver_to_ackchecker", recACKs::size);
 
-        // Start delivering, ack checker and sender
+        // Start delivering, ack checker and sender (in event loop mode they are run by step())
+        if (Constants.EVENT_LOOP) {
+            ackChecker = new ACKChecker();
+            return;
+        }
         receiveAndDeliver();
         startAckCheck();
         send();
     }
 
+    /**
+     * Register the metrics of the link to a process
+     * @param metrics metrics of the process
+     * @param pid the process
+     */
+    private void registerMetrics(Metrics metrics, int pid) {
+        String peer = "{peer=" + pid + "}";
+        LinkState link = links[pid-1];
+        sentCount[pid-1] = metrics.counter("pl.sent" + peer);
+        retransmitCount[pid-1] = metrics.counter("pl.retransmitted" + peer);
+        ackedCount[pid-1] = metrics.counter("pl.acked" + peer);
+        rttHistograms[pid-1] = metrics.histogram("pl.rtt_ns" + peer);
+        for (Packet.packType type: packTypes) {
+            String window = "pl.window." + type.name().toLowerCase();
+            metrics.gauge(window + ".size" + peer, () -> {
+                synchronized (link) {
+                    return link.getWindow(type).getSize();
+                }
+            });
+            metrics.gauge(window + ".threshold" + peer, () -> {
+                synchronized (link) {
+                    return link.getWindow(type).getThreshold();
+                }
+            });
+        }
+        metrics.gauge("pl.rto_ns" + peer, () -> {
+            synchronized (link) {
+                return link.getRTO();
+            }
+        });
+        metrics.gauge("pl.srtt_ns" + peer, () -> ackChecker == null ? 0 : ackChecker.getRTT(pid));
+    }
+
+    /**
+     * Open the transports, binding them with SO_REUSEPORT if there is more than one
+     * Either every transport is opened or none is: if one can't be opened, the ones already opened are closed
+     * @param num number of transports
+     * @throws IOException if a transport can't be opened
+     */
+    private void openTransports(int num) throws IOException {
+        Transport[] opened = new Transport[num];
+        for (int i = 0; i < num; i++) {
+            try {
+                opened[i] = Transport.open(this.myPort, num > 1);
+            } catch (IOException e) {
+                for (int j = 0; j < i; j++) {
+                    try {
+                        opened[j].close();
+                    } catch (IOException closeError) {
+                        e.addSuppressed(closeError);
+                    }
+                }
+                throw e;
+            }
+        }
+        transports = opened;
+    }
+
+    /**
+     * @param pid a process
+     * @return the sender of the packets to the process
+     */
+    private Send senderOf(int pid) {
+        return senders[(pid-1) % senders.length];
+    }
+
+    /**
+     * Wait until the windows let LCausal broadcast the message with the given lsn
+     * @param lsn lsn of the message
+     */
+    public void waitWindowLimit(int lsn) {
+        synchronized (lockSending) { // Acquire the lock before waiting
+            while (lsn > windowLimit) {
+                try {
+                    lockSending.wait();
+                } catch (InterruptedException e) {
+                    System.out.println("Interrupted LCausal waiting: " + e.toString());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return number of LCausal messages that can be broadcast (the max upper bound of the LCausal windows)
+     */
+    public int getWindowLimit() {
+        synchronized (lockSending) {
+            return windowLimit;
+        }
+    }
+
+    /**
+     * Pass packets to send to the Perfect Link
+     * They are put in the queue read by the sender of their destination,
+     * or directly in the lists to send in event loop mode
+     * @param packets packets to send
+     */
+    public void sendPackets(List<Packet> packets) {
+        if (Constants.EVENT_LOOP)
+            senders[0].addToSend(packets);
+        else if (senders.length == 1)
+            senders[0].messageToSend.addAll(packets);
+        else
+            packets.forEach(p -> senderOf(p.getDestId()).messageToSend.add(p));
+    }
+
+    /**
+     * Run a round of the Perfect Link in event loop mode, doing on the caller thread the work of the 3 threads:
+     * send what the windows allow, wait for datagrams until the next timer tick (or the timeout if no timer is
+     * running), process all the datagrams ready, the ACKs and the expired timers
+     * @return the messages to deliver to URB
+     */
+    public List<MessagePacket> step() {
+        List<MessagePacket> delivered = new ArrayList<>();
+        List<SelectiveAck> acks = new ArrayList<>();
+        Send sender = senders[0];
+        Receive receiver = receivers[0];
+        sender.sendRound();
+        try {
+            selectable.await(Math.max(TimeUnit.NANOSECONDS.toMillis(ackChecker.timeout), 1));
+        } catch (IOException e) {
+            System.out.println("Waiting on transport error: " + e.toString());
+        }
+        // Process everything we can receive without waiting
+        InetSocketAddress from;
+        while ((from = receiver.recNowOnSocket()) != null)
+            receiver.receiveDatagram(from, delivered, acks);
+        if (!acks.isEmpty())
+            ackChecker.processAcks(acks);
+        sender.addToSend(ackChecker.checkTimers());
+        return delivered;
+    }
+
     /**
      * Class (thread) that will sent messages coming from URB or the ACKChecker
+     * Every sender has its own queue, lists of packets to send and buffer, and sends to a shard of the processes
      */
     private class Send extends Thread {
+        // Messages to send received from URB or from the ACKChecker
+        private final LinkedBlockingQueue<Packet> messageToSend;
+        // We keep two different windows to improve performance, the LCausal window will be substituted by a window
+        // for any layer you'd want to put above URB in next implementation
+        // (insertion ordered sets: packets are batched in the order they were added, a packet queued again while
+        // it's still waiting is dropped in O(1), not with a scan of the list)
+        private final LinkedHashSet<Packet> packetToSendLCausal = new LinkedHashSet<>(); // Packet to send of LCausal type
+        private final LinkedHashSet<Packet> packetToSendURB = new LinkedHashSet<>(); // Packet to send of URB type
+        private final Transport transport; // Transport to send on
+        private final ByteBuffer sendBuf; // Buffer to serialize packets into
+
+        /**
+         * @param messageToSend queue of the messages to send
+         * @param transport transport to send on
+         */
+        Send(LinkedBlockingQueue<Packet> messageToSend, Transport transport) {
+            this.messageToSend = messageToSend;
+            this.transport = transport;
+            this.sendBuf = transport.allocate(Constants.MAX_PACKET_SIZE);
+        }
+
         /**
          * Run the Sender thread
          */
@@ -114,107 +317,147 @@ public class PerfectLink {
                     // in the lists
                     p1 = messageToSend.poll(1000, TimeUnit.MILLISECONDS);
                 } catch (InterruptedException ignored) {}
-                // If we got something, add everything we got to the correct list (if not already present)
+                // If we got something, add everything we got to the correct list
                 if (p1!=null) {
                     pToSend.add(p1);
                     messageToSend.drainTo(pToSend);
-                    pToSend.forEach(p -> {
-                        if (p.getType() == Packet.packType.LCausal) {
-                            if (!packetToSendLCausal.contains(p))
-                                packetToSendLCausal.add(p); // Add to packets to send LCausal
-                        } else {
-                            if (!packetToSendURB.contains(p))
-                                packetToSendURB.add(p); // Add to packets to send URB
-                        }
-                    });
+                    addToSend(pToSend);
                 }
-                // Iterate over the packets to send on LCausal and check if we can send them
-                for(Iterator<Packet> itLCausal = packetToSendLCausal.iterator(); itLCausal.hasNext();) {
-                    Packet pLCausal = itLCausal.next();
-                    // Get lsn (second element of the message, other data will eventually come later)
-                    int lsn = Integer.parseInt(pLCausal.getMessagePacket().getMessage().split(" ")[1]);
-                    synchronized (lockLCausal) {
-                        // Check if packet cannot be sent by looking into the process window LCausal
-                        if (!windowLCausal.get(pLCausal.getDestId()).canSend(lsn)) {
-                            // Check if packet (inside the window) was already acked. If it is, remove it from the sends
-                            if (windowLCausal.get(pLCausal.getDestId()).alreadyAck(lsn))
-                                itLCausal.remove();
-                            continue;
-                        }
+                sendRound();
+            }
+        }
+
+        /**
+         * Add packets to the lists of packets to send (if not already present)
+         * Called by the sender thread, or directly in event loop mode
+         * @param pToSend packets to add
+         */
+        private void addToSend(List<Packet> pToSend) {
+            pToSend.forEach(p -> {
+                if (p.getType() == Packet.packType.LCausal)
+                    packetToSendLCausal.add(p); // Add to packets to send LCausal
+                else
+                    packetToSendURB.add(p); // Add to packets to send URB
+            });
+        }
+
+        /**
+         * Send the packets in the lists that the windows allow to send, batched by destination
+         * Called by the sender thread, or directly in event loop mode
+         */
+        private void sendRound() {
+            // Packets that can be sent in this round, grouped by destination to batch them in few datagrams
+            HashMap<Integer, List<Packet>> batches = new HashMap<>();
+            // Iterate over the packets to send on LCausal and check if we can send them
+            for(Iterator<Packet> itLCausal = packetToSendLCausal.iterator(); itLCausal.hasNext();) {
+                Packet pLCausal = itLCausal.next();
+                // Get lsn (second element of the message, other data will eventually come later)
+                int lsn = pLCausal.getMessagePacket().getLsn();
+                LinkState link = links[pLCausal.getDestId()-1];
+                synchronized (link) {
+                    // Check if packet cannot be sent by looking into the process window LCausal
+                    Window window = link.getWindow(Packet.packType.LCausal);
+                    if (!window.canSend(lsn)) {
+                        // Check if packet (inside the window) was already acked. If it is, remove it from the sends
+                        if (window.alreadyAck(lsn))
+                            itLCausal.remove();
+                        continue;
                     }
-                    // We can send the packet. Do it and remove
-                    sendPacket(pLCausal);
-                    itLCausal.remove();
                 }
-                // Iterate over the URB packet
-                for(Iterator<Packet> itURB = packetToSendURB.iterator(); itURB.hasNext();) {
-                    Packet pURB = itURB.next();
-                    int lsn;
-                    synchronized (lockURB) {
-                        // Get the packet lsn from the map
-                        // or generate a new one if it's the first time we see the packet
-                        HashMap<Packet, Integer> lsnProcess = URBlsn.get(pURB.getDestId());
-                        if (lsnProcess.containsKey(pURB))
-                            lsn = lsnProcess.get(pURB); // Old packet
-                        else {
-                            lsn = URBlsnCount.get(pURB.getDestId()) + 1; // New one: new lsn
-                            lsnProcess.put(pURB, lsn);
-                            URBlsnCount.put(pURB.getDestId(), lsn);
-                            URBlsn.put(pURB.getDestId(), lsnProcess);
-                        }
-                        // Check if we can send the packet and if it was already acked, eventually removing it
-                        if (!windowURB.get(pURB.getDestId()).canSend(lsn)) {
-                            if (windowURB.get(pURB.getDestId()).alreadyAck(lsn))
-                                itURB.remove();
-                            continue;
-                        }
+                // We can send the packet. Add it to the batch of its destination and remove
+                batches.computeIfAbsent(pLCausal.getDestId(), k -> new ArrayList<>()).add(pLCausal);
+                itLCausal.remove();
+            }
+            // Iterate over the URB packet
+            for(Iterator<Packet> itURB = packetToSendURB.iterator(); itURB.hasNext();) {
+                Packet pURB = itURB.next();
+                LinkState link = links[pURB.getDestId()-1];
+                synchronized (link) {
+                    // Get the packet lsn (a new one if it's the first time we see the packet)
+                    int lsn = link.getURBLsn(pURB);
+                    // Check if we can send the packet and if it was already acked, eventually removing it
+                    Window window = link.getWindow(Packet.packType.URB);
+                    if (!window.canSend(lsn)) {
+                        if (window.alreadyAck(lsn))
+                            itURB.remove();
+                        continue;
                     }
-                    // We can send the packet: we do it
-                    sendPacket(pURB);
-                    itURB.remove();
+                }
+                // We can send the packet: add it to the batch of its destination
+                batches.computeIfAbsent(pURB.getDestId(), k -> new ArrayList<>()).add(pURB);
+                itURB.remove();
+            }
+            // Send the batches (one or more datagrams per destination)
+            batches.values().forEach(this::sendBatch);
+        }
+
+        /**
+         * Send a batch of packets to the same process, packing as many packets as possible in each datagram
+         * @param batch packets to send (all with the same destination)
+         */
+        private void sendBatch(List<Packet> batch) {
+            // Get destination from the first packet (same for all of them)
+            int destId = batch.get(0).getDestId();
+            InetSocketAddress dest = addressMap.get(destId);
+            LinkState link = links[destId-1];
+            int[] lsns = new int[batch.size()];
+            int[] rNums = new int[batch.size()];
+            synchronized (link) {
+                for (int i = 0; i < rNums.length; i++) {
+                    Packet p = batch.get(i);
+                    lsns[i] = getLsn(link, p);
+                    // Note the time we are sending the packet, the retransmit number is sent with the message
+                    long now = Clock.nanoTime();
+                    rNums[i] = link.getToRecAck().send(destId, p.getType(), lsns[i], now);
+                    (rNums[i] == 0 ? sentCount : retransmitCount)[destId-1].inc();
+                    // Start the retransmission timer (the one of the previous send, if any, is now stale)
+                    link.getTimers().schedule(p, lsns[i], now, now + link.getRTO());
+                }
+            }
+            // Serialize the messages one after the other with their type, lsn and retransmit number
+            sendBuf.clear();
+            for (int i = 0; i < rNums.length; i++) {
+                int start = sendBuf.position();
+                sendBuf.put(DATA);
+                sendBuf.put((byte) batch.get(i).getType().ordinal());
+                MessagePacket.putVarInt(sendBuf, lsns[i]);
+                MessagePacket.putVarInt(sendBuf, rNums[i]);
+                batch.get(i).getMessagePacket().serialize(sendBuf);
+                // If the message doesn't fit anymore, send what we have and move it at the beginning of the buffer
+                if (sendBuf.position() > Constants.MAX_BATCH_SIZE && start > 0) {
+                    int end = sendBuf.position();
+                    sendBuf.flip().limit(start);
+                    sendOnSocket(transport, sendBuf, dest);
+                    sendBuf.limit(end).position(start);
+                    sendBuf.compact();
                 }
             }
+            // Send the last datagram
+            sendBuf.flip();
+            sendOnSocket(transport, sendBuf, dest);
         }
     }
 
     /**
-     * Send the packet to the process
-     * @param p packet to send
+     * Get the lsn of a packet on the link
+     * LCausal packets use the message lsn, URB packets the one given by the sender to the destination
+     * Must be called holding the lock of the link
+     * @param link state of the link to the packet destination
+     * @param p the packet
+     * @return the packet lsn
      */
-    private void sendPacket(Packet p) {
-        // Get info from the packets
-        String sendString = p.getMessagePacket().getMessage();
-        InetAddress destIp = p.getDestIp();
-        int destPort = p.getDestPort();
-        String sendStringWithRet;
-        synchronized (lockAck) {
-            // Get how many times the packet was retransmitted
-            ArrayList<Long> retransmits =
-                    toRecAckProcess.get(p.getDestId()-1).getOrDefault(p, new ArrayList<>());
-            // Add the retransmit number to the message and send it with such number
-            sendStringWithRet = sendString + ",r" + retransmits.size();
-            // Add the time we are sending the packet to the retransmits list and set it into the map
-            retransmits.add(System.nanoTime());
-            toRecAckProcess.get(p.getDestId()-1).put(p, retransmits);
-        }
-        // Create the DatagramPacket of the message and send it on the socket
-        MessagePacket messagePacketToSend = new MessagePacket(sendStringWithRet, p.getMessagePacket().getW());
-        byte[] sendBuf = null;
-        try {
-            sendBuf = messagePacketToSend.serialize();
-        } catch (IOException e) {
-            System.out.println("Impossible to serialize packet! " + e.toString());
-        }
-        DatagramPacket dpSend =
-                new DatagramPacket(sendBuf, sendBuf.length, destIp, destPort);
-        sendOnSocket(dpSend);
+    private static int getLsn(LinkState link, Packet p) {
+        if (p.getType() == Packet.packType.LCausal)
+            return p.getMessagePacket().getLsn();
+        return link.getURBLsn(p);
     }
 
     /**
-     * Start the sender thread
+     * Start the sender threads
      */
     public void send() {
-        new Send().start();
+        for (Send sender: senders)
+            sender.start();
     }
 
     /**
@@ -227,12 +470,13 @@ public class PerfectLink {
         Long timeout; // Timeout after which the thread wakeup if no new acks
         Long[] RTTs; // RTT Smoothed (like TCP)
         Long[] RTTd; // RTT Deviation (like TCP)
-        Long[] RTO; // Retransmission time (like TCP)
         Double alpha; // Alpha parameter for RTO estimation
         Double beta; // Beta parameter for RTO estimation
-        HashMap<Integer, HashSet<Packet>> dupAck = new HashMap<>(); // Map of duplicated ack per process
+        int[] dupAckURB; // Number of duplicated URB ACKs received per process
+        int[] dupAckLCausal; // Number of duplicated LCausal ACKs received per process
         boolean[] firstTimeoutURB; // Bool vector to give a "second chance" after timeout URB
         boolean[] firstTimeoutLCausal; // Bool vector to give a "second chance" after timeout LCausal
+        int[] acked = new int[Constants.WINDOW_SIZE]; // Lsns newly ACKed by an ACK (reused, grows with the windows)
 
         /**
          * Init ACKChecker
@@ -244,8 +488,6 @@ public class PerfectLink {
             timeout = 1000L*((long) Math.pow(10, 6));
             RTTs = new Long[hosts.size()];
             RTTd = new Long[hosts.size()];
-            RTO = new Long[hosts.size()];
-            Arrays.fill(RTO, timeout);
             // Alpha and beta as per RCF specification
             alpha = 1.0/8.0;
             beta = 1.0/4.0;
@@ -253,6 +495,17 @@ public class PerfectLink {
             firstTimeoutLCausal = new boolean[hosts.size()];
             Arrays.fill(firstTimeoutURB, false);
             Arrays.fill(firstTimeoutLCausal, false);
+            dupAckURB = new int[hosts.size()];
+            dupAckLCausal = new int[hosts.size()];
+        }
+
+        /**
+         * @param pid a process
+         * @return the smoothed RTT of the process (0 if not measured yet)
+         */
+        long getRTT(int pid) {
+            Long RTT = RTTs[pid-1];
+            return RTT == null ? 0 : RTT;
         }
 
         /**
@@ -262,373 +515,434 @@ public class PerfectLink {
         public void run() {
             while (true) {
                 // Try to receive some ACKs from the delivering thread
-                PacketTimeRnum recAck = null;
+                SelectiveAck recAck = null;
                 try {
                     recAck = recACKs.poll(timeout, TimeUnit.NANOSECONDS); // Go over to next checks after timeout
                 } catch (InterruptedException ignored) {}
                 if (recAck!=null) {
                     // If we receive something, we process it
-                    List<PacketTimeRnum> newAcks = new LinkedList<>();
+                    List<SelectiveAck> newAcks = new LinkedList<>();
                     newAcks.add(recAck);
                     recACKs.drainTo(newAcks);
-                    for (PacketTimeRnum pt: newAcks) {
-                        int pid = pt.getPacket().getDestId();
-                        boolean isDup;
-                        // Check if an ACK is duplicated ACK by using the correct process window
-                        if (pt.getPacket().getType() == Packet.packType.URB) {
-                            synchronized (lockURB) {
-                                // Get lsn and check if was already ack
-                                int lsn = URBlsn.get(pt.getPacket().getDestId()).get(pt.getPacket());
-                                isDup = windowURB.get(pid).alreadyAck(lsn);
-                            }
-                        }
-                        else {
-                            // Get lsn and check if was already ack
-                            int lsn = Integer.parseInt(
-                                    pt.getPacket().getMessagePacket().getMessage().split(" ")[1]);
-                            synchronized (lockLCausal) {
-                                isDup = windowLCausal.get(pid).alreadyAck(lsn);
-                            }
-                        }
-                        if (isDup) {
-                            // If is duplicated, need to check if it's first or second duplicate
-                            HashSet<Packet> ackRec = dupAck.getOrDefault(pid, new HashSet<>());
-                            if (ackRec.contains(pt.getPacket())) {
-                                // If it's the second duplicate need to reduce window size (using .dupAck())
-                                // Reduce correct window depending on packet type
-                                if (pt.getPacket().getType() == Packet.packType.URB) {
-                                    synchronized (lockURB) {
-                                        windowURB.get(pid).dupAck();
-                                    }
-                                }
-                                else {
-                                    synchronized (lockLCausal) {
-                                        windowLCausal.get(pid).dupAck();
-                                    }
-                                }
-                            }
-                            else {
-                                // If it's the first duplicated packet, just add it to the set of duplicated
-                                // Next one will trigger the dupAck procedure
-                                ackRec.add(pt.getPacket());
-                                dupAck.put(pt.getPacket().getDestId(),ackRec);
-                            }
-                            synchronized (lockAck) {
-                                // Remove the packet if we still have it in the toReckAck map
-                                // (avoiding incorrect timeouts)
-                                toRecAckProcess.get(pid-1).remove(pt.getPacket());
-                            }
-                            continue; // No need to check the packets more
-                        }
-                        if (pt.getPacket().getType() == Packet.packType.URB) {
-                            // Received an ack for URB, mark the packet as received and
-                            // increase the URB window for the process (by 1 or doubling, depending on threshold)
-                            synchronized (lockURB) {
-                                int lsn = URBlsn.get(pt.getPacket().getDestId()).get(pt.getPacket());
-                                windowURB.get(pid).markPacket(lsn);
-                                windowURB.get(pid).increaseSize();
-                            }
-                        }
-                        else {
-                            // Received an ack for LCausal, mark the packet as received and
-                            // increase the LCausal window for the process (by 1 or doubling, depending on threshold)
-                            int lsn = Integer.parseInt(
-                                    pt.getPacket().getMessagePacket().getMessage().split(" ")[1]);
-                            synchronized (lockLCausal) {
-                                windowLCausal.get(pid).markPacket(lsn);
-                                windowLCausal.get(pid).increaseSize();
-                            }
-                        }
-                        long RTTm;
-                        synchronized (lockAck) {
-                            // Measure the RTT for the packet and remove it from the map
-                            // Note that the RTT is measured with respect to the correct element of the list
-                            // inside to RecACK. Such element is defined by looking at the retransmission number
-                            // The time the packet was received is inside the PacketTimeRnum
-                            HashMap<Packet, ArrayList<Long>> toRecACK = toRecAckProcess.get(pid-1);
-                            RTTm = pt.getTimeRec() - toRecACK.get(pt.getPacket()).get(pt.getrNum());
-                            toRecACK.remove(pt.getPacket());
-                            toRecAckProcess.set(pid-1, toRecACK);
-                        }
-                        if (!recFirst[pid-1]) {
-                            // If it's the first ACK we receive from the process, define initial parameters
-                            RTTs[pid-1] = RTTm;
-                            RTTd[pid-1] = RTTm/2;
-                            recFirst[pid-1] = true;
-                        }
-                        else {
-                            // Update the parameters:
-                            //    RTTs = (1-alpha)*RTTs + alpha*RTTm
-                            //    RTTd = (1-beta)*RTTd + beta*|RTTm - RTTs|
-                            RTTs[pid-1] = new Double((1-alpha)*RTTs[pid-1] + alpha*RTTm).longValue();
-                            RTTd[pid-1] = new Double((1-beta)*RTTd[pid-1]
-                                    + beta * Math.abs(RTTm - RTTs[pid-1])).longValue();
-                        }
-                        // Update RTO: RTO = RTTs + 4*RTTd
-                        RTO[pid-1] = RTTs[pid-1] + 4*RTTd[pid-1];
-                    }
-                    synchronized (LCausal.lockSending) {
-                        // Update the number of packets LCausal can send
-                        // The value is updated to the maximum upper bound one of the process can handle.
-                        // This way no process will be blocked by other being slower
-                        // (the slower process won't receive the new packets anyway because of their windows)
-                        synchronized (lockLCausal) {
-                            LCausal.windowLimit = Math.max(LCausal.windowLimit,
-                                    windowLCausal
-                                            .values().stream()
-                                            .mapToInt(Window::getUpperBound).max().orElse(Constants.WINDOW_SIZE));
-                            // Notify LCausal that now can send more
-                            LCausal.lockSending.notify();
+                    processAcks(newAcks);
+                }
+                // Add all the packets to send again into the queue which the sender will read
+                LinkedList<Packet> toAck = checkTimers();
+                if (!toAck.isEmpty())
+                    sendPackets(toAck);
+            }
+        }
+
+        /**
+         * Process a batch of ACKs: mark the packets ACKed in the windows, resize them, measure the RTT
+         * and let LCausal send more if the windows grew
+         * Called by the ACKChecker thread, or directly in event loop mode
+         * @param newAcks the ACKs received
+         */
+        void processAcks(List<SelectiveAck> newAcks) {
+            // Maximum upper bound of the LCausal windows of the processes acking
+            int maxUpperBound = Constants.WINDOW_SIZE;
+            for (SelectiveAck sack: newAcks) {
+                int pid = sack.getPid();
+                boolean isURB = sack.getType() == Packet.packType.URB;
+                LinkState link = links[pid-1];
+                // Mark in bulk everything the ACK covers in the correct process window
+                // and increase the window (by 1 or doubling, depending on threshold) for every new packet acked
+                int numAcked;
+                synchronized (link) {
+                    Window window = link.getWindow(sack.getType());
+                    if (acked.length < window.capacity())
+                        acked = new int[window.capacity()];
+                    numAcked = window.markPackets(sack.getCumAck(), sack.getSack(), acked);
+                    for (int i = 0; i < numAcked; i++)
+                        window.increaseSize();
+                    if (!isURB)
+                        maxUpperBound = Math.max(maxUpperBound, window.getUpperBound());
+                }
+                int[] dupAcks = isURB ? dupAckURB : dupAckLCausal;
+                if (numAcked == 0) {
+                    // If the ACK is duplicated (nothing new acked), need to check if it's first or second
+                    dupAcks[pid-1]++;
+                    if (dupAcks[pid-1] >= 2) {
+                        // If it's the second duplicate need to reduce window size (using .dupAck())
+                        // Reduce correct window depending on packet type
+                        dupAcks[pid-1] = 0;
+                        synchronized (link) {
+                            link.getWindow(sack.getType()).dupAck();
                         }
                     }
+                    continue; // No need to check the packets more
+                }
+                dupAcks[pid-1] = 0;
+                long RTTm = -1;
+                synchronized (link) {
+                    InFlightTable toRecAck = link.getToRecAck();
+                    // Measure the RTT on the packet echoed by the ACK (if we were still waiting for it)
+                    // Only the last send time is kept, so the RTT is measured only if the retransmission
+                    // number echoed is the one of the last send (otherwise we can't know which send was ACKed)
+                    // The time the packet was received is inside the SelectiveAck
+                    long sentAt = toRecAck.getSentAt(pid, sack.getType(), sack.getEchoLsn());
+                    if (sentAt != InFlightTable.NOT_IN_FLIGHT &&
+                            sack.getEchoRNum() == toRecAck.getSends(pid, sack.getType(), sack.getEchoLsn()) - 1)
+                        RTTm = sack.getTimeRec() - sentAt;
+                    // Remove all the packets acked from the table
+                    for (int i = 0; i < numAcked; i++)
+                        toRecAck.remove(pid, sack.getType(), acked[i]);
+                }
+                ackedCount[pid-1].add(numAcked);
+                if (RTTm < 0)
+                    continue; // No RTT measure for this ACK
+                rttHistograms[pid-1].record(RTTm);
+                if (!recFirst[pid-1]) {
+                    // If it's the first ACK we receive from the process, define initial parameters
+                    RTTs[pid-1] = RTTm;
+                    RTTd[pid-1] = RTTm/2;
+                    recFirst[pid-1] = true;
+                }
+                else {
+                    // Update the parameters:
+                    //    RTTs = (1-alpha)*RTTs + alpha*RTTm
+                    //    RTTd = (1-beta)*RTTd + beta*|RTTm - RTTs|
+                    RTTs[pid-1] = new Double((1-alpha)*RTTs[pid-1] + alpha*RTTm).longValue();
+                    RTTd[pid-1] = new Double((1-beta)*RTTd[pid-1]
+                            + beta * Math.abs(RTTm - RTTs[pid-1])).longValue();
                 }
-                LinkedList<Packet> toAck;
-                timeout = Collections.max(Arrays.asList(RTO)); // Update timeout to the max of new RTOs
-                Long now = System.nanoTime();
-                synchronized (lockAck) {
-                    toAck = new LinkedList<>();
-                    // Cycle over the PIDs and define which packets must be send again
-                    for (int pid = 1; pid<=hosts.size(); pid++) {
-                        if (pid==id)
-                            continue; // Myself -> continue
-                        int finalPid = pid;
-                        LinkedList<Packet> toSendPid =
-                                toRecAckProcess.get(pid-1).entrySet().stream()
-                                        // Filter packets for which at least RTO is passed from the last retransmit
-                                        .filter(x -> now - x.getValue().get(x.getValue().size()-1) >= RTO[finalPid - 1])
-                                        .map(Map.Entry::getKey)
-                                        // Keep only packets not already in the queue the sender will read
-                                        // (to avoid many helpless retransmits)
-                                        .filter(p -> !messageToSend.contains(p))
-                                        .collect(Collectors.toCollection(LinkedList::new));
-
-                        // Cycle over the packets to see if there's something we already acked
-                        // but it's still in the toRecAckProcess but we lost the second (or more) ack
+                // Update RTO: RTO = RTTs + 4*RTTd
+                synchronized (link) {
+                    link.setRTO(RTTs[pid-1] + 4*RTTd[pid-1]);
+                }
+            }
+            synchronized (lockSending) {
+                // Update the number of packets LCausal can send
+                // The value is updated to the maximum upper bound one of the process can handle.
+                // This way no process will be blocked by other being slower
+                // (the slower process won't receive the new packets anyway because of their windows)
+                // Upper bounds grow only with ACKs, so the ones of the processes acking are enough for the maximum
+                windowLimit = Math.max(windowLimit, maxUpperBound);
+                // Notify LCausal that now can send more
+                lockSending.notify();
+            }
+        }
+
+        /**
+         * Check the retransmission timers expired and reduce the windows of the processes that timed out
+         * Called by the ACKChecker thread, or directly in event loop mode
+         * @return the packets to send again
+         */
+        LinkedList<Packet> checkTimers() {
+            LinkedList<Packet> toAck = new LinkedList<>();
+            long now = Clock.nanoTime();
+            boolean running = false; // Whether some live timer is still running
+            long nextDeadline = Long.MAX_VALUE; // Earliest deadline of the timers of the links with a timer running
+            long maxRTO = 0; // Max of the RTOs
+            // Cycle over the processes and define which packets must be send again
+            for (Host h: hosts) {
+                int pid = h.getId();
+                LinkState link = links[pid-1];
+                synchronized (link) {
+                    TimerWheel timers = link.getTimers();
+                    InFlightTable toRecAck = link.getToRecAck();
+                    // Take the expired timers from the wheel
+                    LinkedList<TimerWheel.Timer> toSendPid = new LinkedList<>();
+                    for (TimerWheel.Timer timer: timers.expire(now)) {
+                        Packet p = timer.getPacket();
+                        // Skip stale timers: the packet was acked (removed from the table)
+                        // or sent again after the timer was started (a newer timer is in the wheel)
+                        if (toRecAck.getSentAt(pid, p.getType(), timer.getLsn()) != timer.getSentAt())
+                            continue;
+                        // Check if it's something we already acked but it's still in the toRecAck
+                        // but we lost the second (or more) ack
                         // (and we won't send it again because the window marked it has acked)
-                        for (Iterator<Packet> it = toSendPid.iterator(); it.hasNext();) {
-                            Packet p = it.next();
-                            if (p.getType() == Packet.packType.URB) {
-                                synchronized (lockURB) {
-                                    // URB type: if already acked remove from URB window
-                                    int lsn = URBlsn.get(p.getDestId()).get(p);
-                                    if (windowURB.get(pid).alreadyAck(lsn)) {
-                                        synchronized (lockAck) {
-                                            toRecAckProcess.get(pid).remove(p);
-                                            it.remove();
-                                        }
-                                    }
-                                }
-                            }
-                            else {
-                                int lsn = Integer.parseInt(p.getMessagePacket().getMessage().split(" ")[1]);
-                                synchronized (lockLCausal) {
-                                    // LCausal type: if already acked remove from LCausal window
-                                    if (windowLCausal.get(pid).alreadyAck(lsn)) {
-                                        synchronized (lockAck) {
-                                            toRecAckProcess.get(pid).remove(p);
-                                            it.remove();
-                                        }
-                                    }
-                                }
-                            }
-                        }
-                        // Check if any LCausal packet timed out
-                        boolean timeoutWindow = toSendPid.stream()
-                                .map(Packet::getType)
-                                .anyMatch(packType -> packType == Packet.packType.LCausal);
-                        if (timeoutWindow) {
-                            // If firstTimeoutLCausal[pid-1]=false we don't reduce the window (a "second chance")
-                            // Giving the second chance may help because this is not like classical TCP,
-                            // a process may have nothing acked at this batch but it will have in the next one
-                            if (!firstTimeoutLCausal[pid-1]) {
-                                firstTimeoutLCausal[pid-1] = true;
-                                continue;
-                            }
-                            // If it's the second time of timeout, reduce the window with timeout
-                            // (i.e. put the window size to Constants.WINDOW_SIZE and thresh = windowSize/2)
-                            firstTimeoutLCausal[pid-1] = false;
-                            synchronized (lockLCausal) {
-                                windowLCausal.get(pid).timeoutStart();
-                            }
-                        }
-                        // Check if any URB packet timed out
-                        boolean timeoutURB = toSendPid.stream()
-                                .map(Packet::getType)
-                                .anyMatch(packType -> packType == Packet.packType.URB);
-                        if (timeoutURB) {
-                            // Same reasoning as LCausal about second chance
-                            if (!firstTimeoutURB[pid-1]) {
-                                firstTimeoutURB[pid-1] = true;
-                                continue;
-                            }
-                            firstTimeoutURB[pid-1] = false;
-                            // Timeout if it's the second time
-                            synchronized (lockURB) {
-                                windowURB.get(pid).timeoutStart();
-                            }
+                        if (link.getWindow(p.getType()).alreadyAck(timer.getLsn())) {
+                            toRecAck.remove(pid, p.getType(), timer.getLsn());
+                            continue;
                         }
+                        toSendPid.add(timer);
+                    }
+                    if (!toSendPid.isEmpty() && timeoutWindows(pid, link, toSendPid, now))
                         // Add all the packets to ack for this process to the global list
-                        toAck.addAll(toSendPid);
+                        toSendPid.forEach(timer -> toAck.add(timer.getPacket()));
+                    // Every packet waiting for an ACK has exactly one live timer (the one of its last send),
+                    // while the wheel also holds the stale timers, cancelled lazily
+                    if (toRecAck.size() > 0) {
+                        running = true;
+                        nextDeadline = Math.min(nextDeadline, timers.nextDeadline());
                     }
+                    maxRTO = Math.max(maxRTO, link.getRTO());
                 }
-                // Add all the packets in toAck into the queue which the sender will read
-                if (!toAck.isEmpty())
-                    messageToSend.addAll(toAck);
             }
+            // Wake up when the first timer expires if some timer is running, otherwise after the max of the RTOs
+            timeout = running ? Math.max(nextDeadline - now, 1) : maxRTO;
+            return toAck;
+        }
+
+        /**
+         * Reduce the windows of a process after some of its packets timed out
+         * Must be called holding the lock of the link
+         * @param pid the process
+         * @param link state of the link to the process
+         * @param toSendPid expired timers of packets still waiting for an ACK
+         * @param now current time
+         * @return true if the packets must be sent again, false if their timers were started again instead
+         */
+        private boolean timeoutWindows(int pid, LinkState link, List<TimerWheel.Timer> toSendPid, long now) {
+            // Check if any LCausal packet timed out
+            boolean timeoutWindow = toSendPid.stream()
+                    .map(timer -> timer.getPacket().getType())
+                    .anyMatch(packType -> packType == Packet.packType.LCausal);
+            if (timeoutWindow) {
+                // If firstTimeoutLCausal[pid-1]=false we don't reduce the window (a "second chance")
+                // Giving the second chance may help because this is not like classical TCP,
+                // a process may have nothing acked at this batch but it will have in the next one
+                if (!firstTimeoutLCausal[pid-1]) {
+                    firstTimeoutLCausal[pid-1] = true;
+                    restartTimers(link, toSendPid, now);
+                    return false;
+                }
+                // If it's the second time of timeout, reduce the window with timeout
+                // (i.e. put the window size to Constants.WINDOW_SIZE and thresh = windowSize/2)
+                firstTimeoutLCausal[pid-1] = false;
+                link.getWindow(Packet.packType.LCausal).timeoutStart();
+            }
+            // Check if any URB packet timed out
+            boolean timeoutURB = toSendPid.stream()
+                    .map(timer -> timer.getPacket().getType())
+                    .anyMatch(packType -> packType == Packet.packType.URB);
+            if (timeoutURB) {
+                // Same reasoning as LCausal about second chance
+                if (!firstTimeoutURB[pid-1]) {
+                    firstTimeoutURB[pid-1] = true;
+                    restartTimers(link, toSendPid, now);
+                    return false;
+                }
+                firstTimeoutURB[pid-1] = false;
+                // Timeout if it's the second time
+                link.getWindow(Packet.packType.URB).timeoutStart();
+            }
+            return true;
         }
     }
 
     /**
-     * Start the ACKChecker
+     * Start again the timers of packets not sent again after their timer expired (the "second chance")
+     * Must be called holding the lock of the link
+     * @param link state of the link to the packets destination
+     * @param expired expired timers of packets still waiting for an ACK
+     * @param now current time
      */
-    public void startAckCheck() {
-        new ACKChecker().start();
+    private static void restartTimers(LinkState link, List<TimerWheel.Timer> expired, long now) {
+        for (TimerWheel.Timer timer: expired)
+            link.getTimers().schedule(timer.getPacket(), timer.getLsn(), timer.getSentAt(), now + link.getRTO());
     }
 
     /**
-     * Send an ACK for the message received, indicating which retransmits we are ACKing
-     * @param dpRec DatagramPacket received
-     * @param mpRec MessagePacket received
-     * @param rNum Retransmission number to ACK
+     * Start the ACKChecker
      */
-    private void sendACK(DatagramPacket dpRec, MessagePacket mpRec, String rNum) {
-        String sendString;
-        byte[] sendBuf = null;
-        InetAddress destIp = dpRec.getAddress(); // IP to send to
-        int pid = Integer.parseInt(mpRec.getMessage().split(" ")[0]); // Pid to send to
-        int destPort = portMap.get(pid); // Port to send to
-        // Message is "ACK pid retransmit:messageACKed"
-        // We don't need to send a W over the network in this case as won't be used
-        sendString = String.format("ACK %d %s:%s", id, rNum, mpRec.getMessage());
-        MessagePacket ackMessage = new MessagePacket(sendString, null);
-        // Prepare the packet to send and send it on the socket
-        try {
-            sendBuf = ackMessage.serialize();
-        } catch (IOException e) {
-            System.out.println("Impossible to serialize packet! " + e.toString());
-        }
-        DatagramPacket dpSend =
-                new DatagramPacket(sendBuf, sendBuf.length, destIp, destPort);
-        sendOnSocket(dpSend);
+    public void startAckCheck() {
+        ackChecker = new ACKChecker();
+        ackChecker.start();
     }
 
     /**
-     * Class (i.e. thread) that will process packets received
+     * Class (i.e. thread) that will process packets received on a transport
+     * Every receiver has its own buffers, so more receivers can work in parallel
      */
     private class Receive extends Thread {
+        private final Transport transport; // Transport to receive on (and to send the ACKs on)
+        // Buffer to receive into (the buffer can be reused: every message is fully deserialized before the next receive)
+        private final ByteBuffer recBuf;
+        private final ByteBuffer ackBuf; // Buffer to serialize the ACKs into
+
+        /**
+         * @param transport transport to receive on
+         */
+        Receive(Transport transport) {
+            this.transport = transport;
+            this.recBuf = transport.allocate(Constants.MAX_PACKET_SIZE);
+            this.ackBuf = transport.allocate(Constants.MAX_PACKET_SIZE);
+        }
+
         /**
          * Run the receiver thread
          */
         @Override
         public void run() {
-            byte[] recBuf = new byte[1024];
-            DatagramPacket dpRec;
             while (true) {
-                // Create packet to receive on
-                dpRec = new DatagramPacket(recBuf, recBuf.length);
                 // Wait until receiving
-                recOnSocket(dpRec);
-                Long now = System.nanoTime();
-                // Get message received
-                MessagePacket pRec = null;
+                InetSocketAddress from = recOnSocket();
+                if (from == null)
+                    continue;
+                List<MessagePacket> delivered = new ArrayList<>();
+                List<SelectiveAck> acks = new ArrayList<>();
+                receiveDatagram(from, delivered, acks);
+                // Deliver above and put the ACKs in the queue for the ACKChecker
+                messageToDeliver.addAll(delivered);
+                recACKs.addAll(acks);
+            }
+        }
+
+        /**
+         * Add the ACK of a packet type to the ACKs to send back to a process: cumulative ACK and
+         * selective ACK bitmap of the receive window, echoing the last packet received (lsn, retransmission number)
+         * The ACKs are sent when the whole datagram was processed
+         * @param type packet type to ACK
+         * @param pid process to ACK
+         * @param echoLsn lsn of the last packet received
+         * @param echoRNum retransmission number of the last packet received
+         */
+        private void addACK(Packet.packType type, int pid, int echoLsn, int echoRNum) {
+            ReceiveWindow recWindow = type == Packet.packType.URB ? recWindowURB.get(pid) : recWindowLCausal.get(pid);
+            byte[] sack;
+            int cumAck;
+            synchronized (recWindow) {
+                sack = recWindow.getSack(Constants.MAX_SACK_SIZE);
+                cumAck = recWindow.getCumAck();
+            }
+            ackBuf.put(ACK);
+            ackBuf.put((byte) type.ordinal());
+            MessagePacket.putVarInt(ackBuf, id);
+            MessagePacket.putVarInt(ackBuf, cumAck);
+            MessagePacket.putVarInt(ackBuf, echoLsn);
+            MessagePacket.putVarInt(ackBuf, echoRNum);
+            MessagePacket.putVarInt(ackBuf, sack.length);
+            ackBuf.put(sack);
+        }
+
+        /**
+         * Send the ACKs accumulated in the ACK buffer (if any) and clear it
+         * @param pid pid to send to
+         */
+        private void sendACKs(int pid) {
+            if (ackBuf.position() == 0)
+                return;
+            ackBuf.flip();
+            sendOnSocket(transport, ackBuf, addressMap.get(pid));
+            ackBuf.clear();
+        }
+
+        /**
+         * Process the datagram in the receive buffer: note the messages in the receive windows, send back the ACKs,
+         * and collect the new messages to deliver and the ACKs for the ACKChecker
+         * Called by the receiver thread, or directly in event loop mode
+         * @param from the sender address
+         * @param delivered list where to add the messages to deliver above
+         * @param acks list where to add the ACKs received
+         */
+        private void receiveDatagram(InetSocketAddress from, List<MessagePacket> delivered, List<SelectiveAck> acks) {
+            ByteBuffer buf = recBuf;
+            long now = Clock.nanoTime();
+            InetAddress address = from.getAddress(); // IP address
+            int senderPid = 0; // Pid of the process that sent the messages we ACK
+            // Last lsn and retransmit number received by packet type (lsn 0 if none of that type)
+            int[] echoLsn = new int[packTypes.length];
+            int[] echoRNum = new int[packTypes.length];
+            // The datagram is a batch of messages (or ACKs) one after the other: process all of them
+            while (buf.hasRemaining()) {
                 try {
-                    pRec = MessagePacket.deserialize(trim(recBuf));
-                } catch (IOException | ClassNotFoundException e) {
-                    System.out.println("Impossible to deserialize packet! " + e.getMessage());
-                }
-                assert pRec != null;
-                if (!pRec.getMessage().contains("ACK")) {
-                    // If it's a normal message, note which one is the retransmit to ack and ACK it
-                    // Note: Message is delivered only if it wasn't received before
-                    String[] messAndResend = pRec.getMessage().split(","); // Resend number after the ,
-                    MessagePacket messagePacketRec = new MessagePacket(messAndResend[0], pRec.getW());
-                    if (!recMessage.contains(messagePacketRec)) {
-                        // Add to received
-                        recMessage.add(messagePacketRec);
-                        try {
-                            messageToDeliver.put(messagePacketRec); // Deliver above
-                        } catch (InterruptedException e) {
-                            System.out.println("Exception trying to deliver a message in PF " + e.toString());
+                    // Get frame and packet type
+                    byte frame = buf.get();
+                    Packet.packType type = packTypes[buf.get()];
+                    if (frame == DATA) {
+                        // If it's a normal message, get lsn, retransmit number and message
+                        int lsn = MessagePacket.getVarInt(buf);
+                        int rNum = MessagePacket.getVarInt(buf);
+                        MessagePacket messagePacketRec = MessagePacket.deserialize(buf);
+                        senderPid = messagePacketRec.getSender();
+                        // Note the lsn as received in the receive window, we'll ACK it at the end
+                        // (every message has its own lsn from a sender on a packet type, so the window
+                        // also tells if the message was received before)
+                        ReceiveWindow recWindow = (type == Packet.packType.URB ? recWindowURB : recWindowLCausal)
+                                .get(senderPid);
+                        boolean isNew;
+                        synchronized (recWindow) {
+                            isNew = recWindow.receive(lsn);
+                        }
+                        echoLsn[type.ordinal()] = lsn;
+                        echoRNum[type.ordinal()] = rNum;
+                        // Note: Message is delivered only if it wasn't received before
+                        if (isNew) {
+                            delivered.add(messagePacketRec); // Deliver above
+                            deliveredCount.inc();
+                            recorder.deliver(BenchmarkRecorder.Layer.pl, messagePacketRec.getOrigin(),
+                                    messagePacketRec.getLsn());
                         }
                     }
-                    // Send ACK
-                    sendACK(dpRec, messagePacketRec, messAndResend[1]); // Datagram, message, retransmit num
-                }
-                else{
-                    // It's an ACK packet -> get the parameters from it
-                    String[] ackedPack = pRec.getMessage().split(":");
-                    String[] packInfo = ackedPack[0].split(" "); // Pid and retransmit num
-                    int pid = Integer.parseInt(packInfo[1]);
-                    int rNum = Integer.parseInt(packInfo[2].replace("r", ""));
-                    InetAddress address = dpRec.getAddress(); // IP address
-                    int port = portMap.get(pid); // Port
-                    Packet.packType type;
-                    // Depending on length of the header message (2 or 3), determine the packet type (LCausal or URB)
-                    if (ackedPack[1].split(" ").length == 2)
-                        type = Packet.packType.LCausal;
-                    else
-                        type = Packet.packType.URB;
-                    // Create a packet with the known info and put in the queue for the ACKChecker
-                    // Note there's no need to put a W here as it's just a check for ACK
-                    // (and there wasn't one in the ACK message)
-                    Packet p = new Packet(new MessagePacket(ackedPack[1], null), address, port, pid, type);
-                    try {
-                        // Create a packetTimeRnum with packet, time received and retransmit number
-                        recACKs.put(new PacketTimeRnum(p, now, rNum));
-                    } catch (InterruptedException e) {
-                        System.out.println("Exception trying to put an ACK in the queue " + e.toString());
+                    else {
+                        // It's an ACK packet -> get the parameters from it
+                        int ackPid = MessagePacket.getVarInt(buf);
+                        int cumAck = MessagePacket.getVarInt(buf);
+                        int ackEchoLsn = MessagePacket.getVarInt(buf);
+                        int ackEchoRNum = MessagePacket.getVarInt(buf);
+                        byte[] sack = new byte[MessagePacket.getVarInt(buf)];
+                        buf.get(sack);
+                        // Put the ACK with the time it was received in the ones for the ACKChecker
+                        acks.add(new SelectiveAck(ackPid, address, type, cumAck, BitSet.valueOf(sack),
+                                ackEchoLsn, ackEchoRNum, now));
                     }
+                } catch (BufferUnderflowException | ArrayIndexOutOfBoundsException e) {
+                    System.out.println("Impossible to deserialize packet! " + e.toString());
+                    break;
                 }
-                recBuf = new byte[1024]; // Clean buffer
             }
+            // Send one ACK per packet type received in the datagram
+            for (Packet.packType type: packTypes) {
+                if (echoLsn[type.ordinal()] > 0)
+                    addACK(type, senderPid, echoLsn[type.ordinal()], echoRNum[type.ordinal()]);
+            }
+            sendACKs(senderPid);
         }
-    }
 
-    /**
-     * Start receiver process
-     */
-    public void receiveAndDeliver(){
-        new Receive().start();
+        /**
+         * Receive a datagram from the transport into the receive buffer
+         * @return the sender address (null if nothing was received)
+         */
+        private InetSocketAddress recOnSocket() {
+            try {
+                return (InetSocketAddress) transport.receive(recBuf);
+            } catch (IOException e) {
+                System.out.println("Receiving error: " + e.toString());
+                return null;
+            }
+        }
+
+        /**
+         * Receive a datagram from the transport into the receive buffer if one is ready,
+         * without waiting (event loop mode, the transport of the receiver is the selectable one)
+         * @return the sender address (null if nothing was received)
+         */
+        private InetSocketAddress recNowOnSocket() {
+            try {
+                return (InetSocketAddress) selectable.receiveNow(recBuf);
+            } catch (IOException e) {
+                System.out.println("Receiving error: " + e.toString());
+                return null;
+            }
+        }
     }
 
     /**
-     * Send a packet on the dsSend socket
-     * @param dpSend DatagramPacket to send
+     * Start receiver threads
      */
-    private void sendOnSocket(DatagramPacket dpSend) {
-        try {
-            dsSend.send(dpSend);
-        } catch (IOException e) {
-            System.out.println("Sending ACK error: " + e.toString());
-        }
+    public void receiveAndDeliver(){
+        for (Receive receiver: receivers)
+            receiver.start();
     }
 
     /**
-     * Receive a packet from dpRec
-     * @param dpRec DatagramPacket where loading the received packet
+     * Send a datagram on a transport
+     * @param transport transport to send on
+     * @param buf buffer to send (from position to limit)
+     * @param dest destination address
      */
-    private void recOnSocket(DatagramPacket dpRec) {
+    private void sendOnSocket(Transport transport, ByteBuffer buf, InetSocketAddress dest) {
+        recorder.sent(buf.remaining());
         try {
-            dsRec.receive(dpRec);
+            transport.send(buf, dest);
         } catch (IOException e) {
-            System.out.println("Receiving error: " + e.toString());
+            System.out.println("Sending error: " + e.toString());
         }
     }
 
-    /**
-     * Trim a byte array removing the trailing zero bytes
-     * Found on https://stackoverflow.com/a/17004488
-     * @param bytes array to trim
-     * @return array without trailing zero bytes
-     */
-    private static byte[] trim(byte[] bytes)
-    {
-        int i = bytes.length - 1;
-        while (i >= 0 && bytes[i] == 0)
-            --i;
-        return Arrays.copyOf(bytes, i + 1);
-    }
-
     /**
      * Check equality
      * @param o Another object
@@ -641,20 +955,13 @@ public class PerfectLink {
         PerfectLink that = (PerfectLink) o;
         return id == that.id &&
                 myPort == that.myPort &&
-                Objects.equals(dsSend, that.dsSend) &&
-                Objects.equals(dsRec, that.dsRec) &&
+                Arrays.equals(transports, that.transports) &&
                 Objects.equals(portMap, that.portMap) &&
-                Objects.equals(messageToSend, that.messageToSend) &&
+                Objects.equals(addressMap, that.addressMap) &&
                 Objects.equals(messageToDeliver, that.messageToDeliver) &&
                 Objects.equals(recACKs, that.recACKs) &&
-                Objects.equals(packetToSendLCausal, that.packetToSendLCausal) &&
-                Objects.equals(packetToSendURB, that.packetToSendURB) &&
-                Objects.equals(windowLCausal, that.windowLCausal) &&
-                Objects.equals(windowURB, that.windowURB) &&
-                Objects.equals(URBlsn, that.URBlsn) &&
-                Objects.equals(URBlsnCount, that.URBlsnCount) &&
                 Objects.equals(hosts, that.hosts) &&
-                Objects.equals(toRecAckProcess, that.toRecAckProcess);
+                Arrays.equals(links, that.links);
     }
 
     /**
@@ -662,8 +969,9 @@ public class PerfectLink {
      */
     @Override
     public int hashCode() {
-        return Objects.hash(id, myPort, dsSend, dsRec, portMap, messageToSend,
-                messageToDeliver, recACKs, packetToSendLCausal, packetToSendURB,
-                windowLCausal, windowURB, URBlsn, URBlsnCount, hosts, toRecAckProcess);
+        int result = Objects.hash(id, myPort, portMap, addressMap, messageToDeliver, recACKs, hosts);
+        result = 31 * result + Arrays.hashCode(transports);
+        result = 31 * result + Arrays.hashCode(links);
+        return result;
     }
 }
@@ -0,0 +1,101 @@
+package cs451;
+
+import java.util.BitSet;
+import java.util.Objects;
+
+/**
+ * Receiver side of a sliding window, kept by process (and packet type)
+ * Every lsn up to the cumulative ACK was received, the ones received above it are kept in a bitmap
+ * This is what is sent back in a selective ACK, and what tells if a packet is received for the first time
+ * (so memory depends on how much packets are out of order, not on how many were received)
+ */
+public class ReceiveWindow {
+    // Bits below the cumulative ACK are dropped from the bitmap when they are at least this many
+    private static final int COMPACT_BITS = 8192;
+    private int cumAck = 0; // Every lsn <= cumAck was received
+    private int base = 0; // Bit i of the bitmap is lsn base + 1 + i (base <= cumAck)
+    private BitSet received = new BitSet(); // Bit i is set if lsn base + 1 + i was received
+
+    /**
+     * Mark the lsn as received
+     * @param lsn the packet lsn
+     * @return true if it's the first time the lsn is received, false otherwise
+     */
+    public boolean receive(int lsn) {
+        if (lsn <= cumAck || received.get(lsn - base - 1))
+            return false;
+        received.set(lsn - base - 1);
+        if (lsn == cumAck + 1) {
+            // Move the cumulative ACK over the contiguous lsns received
+            cumAck = base + received.nextClearBit(cumAck - base);
+            // Drop the words of the bitmap below the cumulative ACK once in a while (not at every packet)
+            int drop = (cumAck - base) & ~63;
+            if (drop >= COMPACT_BITS) {
+                received = received.get(drop, Math.max(received.length(), drop));
+                base += drop;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check if an lsn was received (without marking it)
+     * @param lsn the packet lsn
+     * @return true if the lsn was received before
+     */
+    public boolean isReceived(int lsn) {
+        return lsn <= cumAck || received.get(lsn - base - 1);
+    }
+
+    /**
+     * @return the cumulative ACK: every lsn up to it was received
+     */
+    public int getCumAck() {
+        return cumAck;
+    }
+
+    /**
+     * Get the bitmap of the lsns received above the cumulative ACK (bit i is lsn cumAck + 1 + i)
+     * @param maxBytes maximum number of bytes of the bitmap (the lsns above it won't be ACKed now)
+     * @return the bitmap, little-endian like BitSet.toByteArray()
+     */
+    public byte[] getSack(int maxBytes) {
+        int from = cumAck - base;
+        return received.get(from, Math.max(Math.min(received.length(), from + 8 * maxBytes), from)).toByteArray();
+    }
+
+    /**
+     * Check equality
+     * @param o Another object
+     * @return true/false if objects are or not the same
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        ReceiveWindow that = (ReceiveWindow) o;
+        return cumAck == that.cumAck &&
+                base == that.base &&
+                received.equals(that.received);
+    }
+
+    /**
+     * @return hashcode
+     */
+    @Override
+    public int hashCode() {
+        return Objects.hash(cumAck, base, received);
+    }
+
+    /**
+     * @return string window representation
+     */
+    @Override
+    public String toString() {
+        return "ReceiveWindow{" +
+                "cumAck=" + cumAck +
+                ", base=" + base +
+                ", received=" + received +
+                '}';
+    }
+}
@@ -0,0 +1,121 @@
+package cs451;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Buffer of the items received out of order from a sequence (e.g. the messages of an origin by lsn)
+ * Items are kept in a ring indexed by seq - next, where next is the sequence number to take out next:
+ * finding, adding and taking out the next item is O(1)
+ * @param <T> item type
+ */
+public class ReorderBuffer<T> {
+    private Object[] items; // Ring of items (capacity is a power of 2), seq is at seq % capacity
+    private int next; // Sequence number of the next item to take out
+    private int size = 0; // Number of items in the buffer
+
+    /**
+     * Create an empty buffer
+     * @param first sequence number of the first item
+     */
+    public ReorderBuffer(int first) {
+        this.items = new Object[16];
+        this.next = first;
+    }
+
+    /**
+     * Add an item (ignored if its sequence number was already taken out)
+     * @param seq sequence number of the item
+     * @param item the item
+     */
+    public void put(int seq, T item) {
+        if (seq < next)
+            return;
+        // Grow the ring to reach seq, keeping the items at their new position
+        if (seq - next >= items.length) {
+            int capacity = items.length;
+            while (seq - next >= capacity)
+                capacity <<= 1;
+            Object[] old = items;
+            items = new Object[capacity];
+            for (int s = next; s - next < old.length; s++)
+                items[s & (capacity - 1)] = old[s & (old.length - 1)];
+        }
+        int i = seq & (items.length - 1);
+        if (items[i] == null)
+            size++;
+        items[i] = item;
+    }
+
+    /**
+     * @return the next item (null if not received yet)
+     */
+    @SuppressWarnings("unchecked")
+    public T peek() {
+        return (T) items[next & (items.length - 1)];
+    }
+
+    /**
+     * Take out the next item and move to the following sequence number
+     * @return the next item (null if not received yet, in which case nothing changes)
+     */
+    public T poll() {
+        T item = peek();
+        if (item == null)
+            return null;
+        items[next & (items.length - 1)] = null;
+        next++;
+        size--;
+        return item;
+    }
+
+    /**
+     * @return sequence number of the next item to take out
+     */
+    public int getNext() {
+        return next;
+    }
+
+    /**
+     * @return number of items in the buffer
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Check equality
+     * @param o Another object
+     * @return true/false if objects are or not the same
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        ReorderBuffer<?> that = (ReorderBuffer<?>) o;
+        return next == that.next &&
+                size == that.size &&
+                Arrays.equals(items, that.items);
+    }
+
+    /**
+     * @return hashcode
+     */
+    @Override
+    public int hashCode() {
+        int result = Objects.hash(next, size);
+        result = 31 * result + Arrays.hashCode(items);
+        return result;
+    }
+
+    /**
+     * @return string buffer representation
+     */
+    @Override
+    public String toString() {
+        return "ReorderBuffer{" +
+                "next=" + next +
+                ", size=" + size +
+                '}';
+    }
+}
@@ -0,0 +1,28 @@
+package cs451;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Transport that can wait for datagrams without receiving them, used by the Perfect Link in event loop mode
+ * (see Constants.EVENT_LOOP): the nio transport (with a selector) and the simulated one
+ */
+public interface SelectableTransport extends Transport {
+
+    /**
+     * Wait until a datagram can be received or the timeout expires
+     * @param timeoutMs maximum time to wait (milliseconds, > 0)
+     * @throws IOException if waiting fails
+     */
+    void await(long timeoutMs) throws IOException;
+
+    /**
+     * Receive a datagram into the buffer if one is ready, without waiting
+     * The buffer is cleared before receiving and flipped after, so it's ready to be read
+     * @param buf buffer to receive into (allocated by this transport)
+     * @return the address of the sender, null if no datagram was ready
+     * @throws IOException if the datagram can't be received
+     */
+    SocketAddress receiveNow(ByteBuffer buf) throws IOException;
+}
@@ -0,0 +1,142 @@
+package cs451;
+
+import java.net.InetAddress;
+import java.util.BitSet;
+import java.util.Objects;
+
+/**
+ * Utility class to represent a cumulative + selective ACK received from a process for one packet type
+ * It also echoes the lsn and retransmission number of the last packet received, to measure the RTT,
+ * and keeps the time it was received
+ */
+public class SelectiveAck {
+    private final int pid;
+    private final InetAddress address;
+    private final Packet.packType type;
+    private final int cumAck;
+    private final BitSet sack;
+    private final int echoLsn;
+    private final int echoRNum;
+    private final long timeRec;
+
+    /**
+     * @param pid pid of the process that sent the ACK
+     * @param address address of the process that sent the ACK
+     * @param type packet type acked
+     * @param cumAck every lsn up to this one was received
+     * @param sack bit i is set if lsn cumAck + 1 + i was received
+     * @param echoLsn lsn of the last packet received
+     * @param echoRNum retransmission number of the last packet received
+     * @param timeRec time ACK received
+     */
+    public SelectiveAck(int pid, InetAddress address, Packet.packType type, int cumAck, BitSet sack,
+                        int echoLsn, int echoRNum, long timeRec) {
+        this.pid = pid;
+        this.address = address;
+        this.type = type;
+        this.cumAck = cumAck;
+        this.sack = sack;
+        this.echoLsn = echoLsn;
+        this.echoRNum = echoRNum;
+        this.timeRec = timeRec;
+    }
+
+    /**
+     * @return pid of the process that sent the ACK
+     */
+    public int getPid() {
+        return pid;
+    }
+
+    /**
+     * @return address of the process that sent the ACK
+     */
+    public InetAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * @return packet type acked
+     */
+    public Packet.packType getType() {
+        return type;
+    }
+
+    /**
+     * @return cumulative ACK
+     */
+    public int getCumAck() {
+        return cumAck;
+    }
+
+    /**
+     * @return bitmap of the lsns received above the cumulative ACK
+     */
+    public BitSet getSack() {
+        return sack;
+    }
+
+    /**
+     * @return lsn of the last packet received
+     */
+    public int getEchoLsn() {
+        return echoLsn;
+    }
+
+    /**
+     * @return retransmission number of the last packet received
+     */
+    public int getEchoRNum() {
+        return echoRNum;
+    }
+
+    /**
+     * @return time received
+     */
+    public long getTimeRec() {
+        return timeRec;
+    }
+
+    /**
+     * Check equality
+     * @param o Another object
+     * @return true/false if objects are or not the same
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        SelectiveAck that = (SelectiveAck) o;
+        return pid == that.pid &&
+                cumAck == that.cumAck &&
+                echoLsn == that.echoLsn &&
+                echoRNum == that.echoRNum &&
+                timeRec == that.timeRec &&
+                type == that.type &&
+                sack.equals(that.sack);
+    }
+
+    /**
+     * @return hashcode
+     */
+    @Override
+    public int hashCode() {
+        return Objects.hash(pid, type, cumAck, sack, echoLsn, echoRNum, timeRec);
+    }
+
+    /**
+     * @return string representation
+     */
+    @Override
+    public String toString() {
+        return "SelectiveAck{" +
+                "pid=" + pid +
+                ", type=" + type +
+                ", cumAck=" + cumAck +
+                ", sack=" + sack +
+                ", echoLsn=" + echoLsn +
+                ", echoRNum=" + echoRNum +
+                ", timeRec=" + timeRec +
+                '}';
+    }
+}
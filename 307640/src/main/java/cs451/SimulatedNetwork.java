@@ -0,0 +1,199 @@
+package cs451;
+
+import java.net.InetSocketAddress;
+import java.util.Objects;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Network simulated inside the JVM, connecting the SimulatedTransports of the processes by port
+ * Every datagram sent can be lost, duplicated, delayed and (with a random jitter) reordered, with the probabilities
+ * and delays in Constants.SIM_*. The faults of a datagram are drawn from a generator seeded by Constants.SIM_SEED,
+ * its link (sender and destination ports) and its number on the link, so they don't depend on the order the
+ * processes send on other links. A datagram arrives at the Clock time it was sent plus the delay
+ * With threads the run is not reproducible: which datagram is the k-th of a link depends on their scheduling.
+ * A deterministic simulation (event loop mode, see Simulation) runs the processes on one thread with the virtual
+ * time of the Clock, moved by nextArrival(): a seed then always gives the same run
+ */
+public class SimulatedNetwork {
+    private static final SimulatedNetwork network = new SimulatedNetwork(Constants.SIM_SEED, Constants.SIM_LOSS,
+            Constants.SIM_DUP, Constants.SIM_DELAY, Constants.SIM_JITTER);
+    private final ConcurrentHashMap<Integer, SimulatedTransport> transports = new ConcurrentHashMap<>(); // By port
+    private final long seed; // Seed of the random generators
+    private final double loss; // Probability a datagram is lost
+    private final double dup; // Probability a datagram is duplicated
+    private final long delay; // Delay added to every datagram (nanoseconds)
+    private final long jitter; // Maximum random delay added to the delay (nanoseconds)
+    private final AtomicLong order = new AtomicLong(); // Order of the datagrams sent, to keep it with the same delay
+    private final AtomicLong sent = new AtomicLong(); // Datagrams sent
+    private final AtomicLong lost = new AtomicLong(); // Datagrams lost
+    private final AtomicLong duplicated = new AtomicLong(); // Datagrams duplicated
+    private final AtomicLong bytes = new AtomicLong(); // Bytes sent
+
+    /**
+     * @param seed seed of the random generators
+     * @param loss probability a datagram is lost
+     * @param dup probability a datagram is duplicated
+     * @param delay delay added to every datagram (milliseconds)
+     * @param jitter maximum random delay added to the delay (milliseconds)
+     */
+    public SimulatedNetwork(long seed, double loss, double dup, double delay, double jitter) {
+        this.seed = seed;
+        this.loss = loss;
+        this.dup = dup;
+        this.delay = (long) (delay * 1000000);
+        this.jitter = (long) (jitter * 1000000);
+    }
+
+    /**
+     * @return the network of this JVM (configured by Constants.SIM_*)
+     */
+    public static SimulatedNetwork get() {
+        return network;
+    }
+
+    /**
+     * Open the transport of a process
+     * @param port port of the process
+     * @param reusePort true if more transports share the port (not supported, there is one transport by port)
+     * @return the transport
+     */
+    public SimulatedTransport open(int port, boolean reusePort) {
+        if (reusePort)
+            throw new UnsupportedOperationException("The simulated network has one transport by port");
+        SimulatedTransport transport = new SimulatedTransport(this, new InetSocketAddress("127.0.0.1", port));
+        transports.put(port, transport);
+        return transport;
+    }
+
+    /**
+     * Remove the transport of a process (if it's still the one on its port)
+     * @param transport the transport
+     */
+    void close(SimulatedTransport transport) {
+        transports.remove(transport.getAddress().getPort(), transport);
+    }
+
+    /**
+     * Mix the bits of a value (SplitMix64 finalizer)
+     * @param z the value
+     * @return the mixed value
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Send a datagram: it's lost, or put (maybe twice) in the queue of the destination with a delay
+     * @param from sender address
+     * @param dest destination address
+     * @param data datagram content
+     * @param number number of the datagram on the link from the sender to the destination
+     */
+    void send(InetSocketAddress from, InetSocketAddress dest, byte[] data, long number) {
+        SplittableRandom random = new SplittableRandom(
+                mix(mix(mix(seed) + ((long) from.getPort() << 16 | dest.getPort())) + number));
+        sent.incrementAndGet();
+        bytes.addAndGet(data.length);
+        SimulatedTransport to = transports.get(dest.getPort());
+        if (to == null || random.nextDouble() < loss) {
+            lost.incrementAndGet();
+            return;
+        }
+        int copies = 1;
+        if (random.nextDouble() < dup) {
+            duplicated.incrementAndGet();
+            copies = 2;
+        }
+        long now = Clock.nanoTime();
+        for (int i = 0; i < copies; i++) {
+            long at = now + delay + (jitter > 0 ? (long) (random.nextDouble() * jitter) : 0);
+            to.arrive(new SimulatedTransport.Datagram(data, from, at, order.incrementAndGet()));
+        }
+    }
+
+    /**
+     * @return arrival time of the next datagram on its way, Long.MAX_VALUE if none
+     */
+    public long nextArrival() {
+        long next = Long.MAX_VALUE;
+        for (SimulatedTransport transport: transports.values())
+            next = Math.min(next, transport.nextArrival());
+        return next;
+    }
+
+    /**
+     * @return datagrams sent
+     */
+    public long getSent() {
+        return sent.get();
+    }
+
+    /**
+     * @return datagrams lost
+     */
+    public long getLost() {
+        return lost.get();
+    }
+
+    /**
+     * @return datagrams duplicated
+     */
+    public long getDuplicated() {
+        return duplicated.get();
+    }
+
+    /**
+     * @return bytes sent
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Check equality
+     * @param o Another object
+     * @return true/false if objects are or not the same
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        SimulatedNetwork that = (SimulatedNetwork) o;
+        return seed == that.seed &&
+                Double.compare(that.loss, loss) == 0 &&
+                Double.compare(that.dup, dup) == 0 &&
+                delay == that.delay &&
+                jitter == that.jitter &&
+                Objects.equals(transports, that.transports);
+    }
+
+    /**
+     * @return hashcode
+     */
+    @Override
+    public int hashCode() {
+        return Objects.hash(transports, seed, loss, dup, delay, jitter);
+    }
+
+    /**
+     * @return string network representation
+     */
+    @Override
+    public String toString() {
+        return "SimulatedNetwork{" +
+                "seed=" + seed +
+                ", loss=" + loss +
+                ", dup=" + dup +
+                ", delay=" + delay +
+                ", jitter=" + jitter +
+                ", sent=" + sent +
+                ", lost=" + lost +
+                ", duplicated=" + duplicated +
+                ", bytes=" + bytes +
+                '}';
+    }
+}
@@ -0,0 +1,261 @@
+package cs451;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Transport of a process on the SimulatedNetwork
+ * Datagrams arriving are kept in a priority queue until their arrival time (Clock time), so they are received
+ * in arrival order. With the virtual time nothing waits: a datagram is received once the simulation moved the time
+ * to its arrival
+ */
+public class SimulatedTransport implements SelectableTransport {
+    private final SimulatedNetwork network; // The network
+    private final InetSocketAddress address; // Address of this transport
+    // Datagrams sent by destination port, to number them on their link (the faults depend on the number)
+    private final ConcurrentHashMap<Integer, AtomicLong> sentTo = new ConcurrentHashMap<>();
+    // Datagrams sent to this transport by arrival time (its monitor guards it and is notified when one arrives)
+    private final PriorityQueue<Datagram> inbox = new PriorityQueue<>();
+    private Datagram ready; // Datagram taken from the inbox by await() and not received yet (event loop mode)
+
+    /**
+     * Datagram travelling on the simulated network
+     */
+    static class Datagram implements Comparable<Datagram> {
+        private final byte[] data; // Content
+        private final InetSocketAddress from; // Sender address
+        private final long at; // Arrival time
+        private final long order; // Order the datagram was sent, for datagrams arriving at the same time
+
+        /**
+         * @param data content
+         * @param from sender address
+         * @param at arrival time
+         * @param order order the datagram was sent
+         */
+        Datagram(byte[] data, InetSocketAddress from, long at, long order) {
+            this.data = data;
+            this.from = from;
+            this.at = at;
+            this.order = order;
+        }
+
+        /**
+         * @param that another datagram
+         * @return order of arrival
+         */
+        @Override
+        public int compareTo(Datagram that) {
+            int cmp = Long.compare(at, that.at);
+            return cmp != 0 ? cmp : Long.compare(order, that.order);
+        }
+    }
+
+    /**
+     * @param network the network
+     * @param address address of this transport
+     */
+    SimulatedTransport(SimulatedNetwork network, InetSocketAddress address) {
+        this.network = network;
+        this.address = address;
+    }
+
+    /**
+     * A datagram arrives from the network
+     * @param datagram the datagram
+     */
+    void arrive(Datagram datagram) {
+        synchronized (inbox) {
+            inbox.add(datagram);
+            inbox.notifyAll();
+        }
+    }
+
+    /**
+     * @return arrival time of the next datagram, Long.MAX_VALUE if none is on its way
+     */
+    long nextArrival() {
+        synchronized (inbox) {
+            Datagram head = inbox.peek();
+            return head == null ? Long.MAX_VALUE : head.at;
+        }
+    }
+
+    /**
+     * Take the next datagram if it arrived
+     * @return the datagram, null if none arrived
+     */
+    private Datagram arrived() {
+        synchronized (inbox) {
+            Datagram head = inbox.peek();
+            return head != null && head.at - Clock.nanoTime() <= 0 ? inbox.poll() : null;
+        }
+    }
+
+    /**
+     * Take the next datagram, waiting until it arrives or the timeout expires (never waits with the virtual time)
+     * @param timeout maximum time to wait (nanoseconds, Long.MAX_VALUE to wait forever)
+     * @return the datagram, null if none arrived
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private Datagram poll(long timeout) throws InterruptedException {
+        synchronized (inbox) {
+            long start = Clock.nanoTime();
+            while (true) {
+                long now = Clock.nanoTime();
+                Datagram head = inbox.peek();
+                if (head != null && head.at - now <= 0)
+                    return inbox.poll();
+                // Wait until the next datagram arrives, a new one is sent here or the timeout expires
+                long wait = head == null ? Long.MAX_VALUE : head.at - now;
+                if (timeout != Long.MAX_VALUE)
+                    wait = Math.min(wait, timeout - (now - start));
+                if (wait <= 0 || Clock.isVirtual())
+                    return null;
+                if (wait == Long.MAX_VALUE)
+                    inbox.wait();
+                else
+                    TimeUnit.NANOSECONDS.timedWait(inbox, wait);
+            }
+        }
+    }
+
+    /**
+     * @param size buffer capacity
+     * @return a heap buffer
+     */
+    @Override
+    public ByteBuffer allocate(int size) {
+        return ByteBuffer.allocate(size);
+    }
+
+    /**
+     * Send a copy of the buffer content on the network
+     * @param buf buffer to send
+     * @param dest destination address
+     */
+    @Override
+    public void send(ByteBuffer buf, SocketAddress dest) {
+        byte[] data = new byte[buf.remaining()];
+        buf.get(data);
+        InetSocketAddress to = (InetSocketAddress) dest;
+        long number = sentTo.computeIfAbsent(to.getPort(), k -> new AtomicLong()).getAndIncrement();
+        network.send(address, to, data, number);
+    }
+
+    /**
+     * Copy a datagram in the buffer
+     * @param datagram the datagram
+     * @param buf buffer to receive into
+     * @return the address of the sender
+     */
+    private static SocketAddress copy(Datagram datagram, ByteBuffer buf) {
+        buf.clear();
+        buf.put(datagram.data);
+        buf.flip();
+        return datagram.from;
+    }
+
+    /**
+     * Wait for a datagram to arrive and receive it
+     * @param buf buffer to receive into
+     * @return the address of the sender
+     * @throws IOException if interrupted while waiting, or if no datagram arrived with the virtual time
+     */
+    @Override
+    public SocketAddress receive(ByteBuffer buf) throws IOException {
+        try {
+            Datagram datagram = poll(Long.MAX_VALUE);
+            if (datagram == null) // Only with the virtual time, which doesn't move while waiting
+                throw new IOException("No datagram arrived at the virtual time " + Clock.nanoTime());
+            return copy(datagram, buf);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException(e.toString());
+        }
+    }
+
+    /**
+     * Wait until a datagram arrives or the timeout expires
+     * @param timeoutMs maximum time to wait (milliseconds, > 0)
+     * @throws IOException if interrupted while waiting
+     */
+    @Override
+    public void await(long timeoutMs) throws IOException {
+        if (ready != null)
+            return;
+        try {
+            ready = poll(TimeUnit.MILLISECONDS.toNanos(timeoutMs));
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException(e.toString());
+        }
+    }
+
+    /**
+     * Receive a datagram if one arrived, without waiting
+     * @param buf buffer to receive into
+     * @return the address of the sender, null if no datagram arrived
+     */
+    @Override
+    public SocketAddress receiveNow(ByteBuffer buf) {
+        Datagram datagram = ready != null ? ready : arrived();
+        ready = null;
+        return datagram == null ? null : copy(datagram, buf);
+    }
+
+    /**
+     * Leave the network: the datagrams sent to this transport are lost from now on
+     */
+    @Override
+    public void close() {
+        network.close(this);
+    }
+
+    /**
+     * @return address of this transport
+     */
+    InetSocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * Check equality
+     * @param o Another object
+     * @return true/false if objects are or not the same
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        SimulatedTransport that = (SimulatedTransport) o;
+        return Objects.equals(address, that.address);
+    }
+
+    /**
+     * @return hashcode
+     */
+    @Override
+    public int hashCode() {
+        return Objects.hash(address);
+    }
+
+    /**
+     * @return string transport representation
+     */
+    @Override
+    public String toString() {
+        synchronized (inbox) {
+            return "SimulatedTransport{" +
+                    "address=" + address +
+                    ", inbox=" + inbox.size() +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package cs451;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Run N processes in this JVM over the simulated network (see SimulatedNetwork): the whole stack can be measured
+ * and profiled in one JVM, without the barrier, the signal and netem
+ * Every process writes its output in OUTPUT_DIR/procXX.output. The run stops when every process delivered
+ * every message, or after SECONDS (with -Dcs451.bench.sample also its benchmark records in procXX.output.bench,
+ * with -Dcs451.metrics its metrics in procXX.output.metrics, with -Dcs451.trace.sample the trace of its queues
+ * in procXX.output.trace)
+ * In event loop mode the simulation is deterministic: the processes run on this thread, each doing a round of its
+ * event loop in turn, with the virtual time of the Clock (SECONDS are then virtual too), so a seed
+ * (-Dcs451.sim.seed) always gives the same outputs. With threads the run depends on their scheduling
+ * Usage: java -Dcs451.transport=sim [-Dcs451.sim.loss=0.1 ...] -cp bin cs451.Simulation N CONFIG SECONDS OUTPUT_DIR
+ */
+public class Simulation {
+    private static final int BASE_PORT = 11000; // Process i is on port BASE_PORT + i
+
+    /**
+     * Class (i.e. thread) that delivers the messages of a process, like the Deliver thread of Main
+     * (not used in event loop mode)
+     */
+    private static class Deliver extends Thread {
+        private final LinkedBlockingQueue<MessagePacket> messageDelivered; // Messages delivered by the process
+        private final OutputLog out; // Output log of the process
+        private final AtomicLong delivered; // Number of messages delivered
+
+        /**
+         * @param messageDelivered messages delivered by the process
+         * @param out output log of the process
+         * @param delivered number of messages delivered
+         */
+        Deliver(LinkedBlockingQueue<MessagePacket> messageDelivered, OutputLog out, AtomicLong delivered) {
+            this.messageDelivered = messageDelivered;
+            this.out = out;
+            this.delivered = delivered;
+            setDaemon(true);
+        }
+
+        /**
+         * Run the deliver thread
+         */
+        @Override
+        public void run() {
+            while (true) {
+                List<MessagePacket> newGot = new LinkedList<>();
+                try {
+                    newGot.add(messageDelivered.take());
+                } catch (InterruptedException e) {
+                    System.out.println("Getting message in simulation error: " + e.toString());
+                    continue;
+                }
+                messageDelivered.drainTo(newGot);
+                deliver(out, newGot);
+                delivered.addAndGet(newGot.size());
+            }
+        }
+    }
+
+    /**
+     * Log the messages delivered by a process
+     * @param out output log of the process
+     * @param newGot the messages, in delivery order
+     */
+    private static void deliver(OutputLog out, List<MessagePacket> newGot) {
+        synchronized (out) {
+            for (MessagePacket got: newGot)
+                out.deliver(got.getOrigin(), got.getLsn());
+        }
+    }
+
+    /**
+     * Run the processes on this thread with the virtual time, until every message is delivered or the time is over
+     * Every process does a round of its event loop in turn, then the time moves a timer tick forward (the precision
+     * of the retransmission timers): the datagrams arriving during the tick are received together in the next round,
+     * like an event loop waking up for a batch. It doesn't move if a datagram already arrived (sent without delay)
+     * @param processes the processes
+     * @param logs output logs of the processes
+     * @param delivered number of messages delivered by process
+     * @param expected number of messages to deliver
+     * @param end virtual time the simulation stops at
+     */
+    private static void runEventLoop(LCausal[] processes, OutputLog[] logs, AtomicLong[] delivered, long expected,
+                                     long end) {
+        SimulatedNetwork network = SimulatedNetwork.get();
+        long total = 0;
+        while (total < expected && Clock.nanoTime() < end) {
+            for (int i = 0; i < processes.length; i++) {
+                List<MessagePacket> newGot = processes[i].step();
+                deliver(logs[i], newGot);
+                delivered[i].addAndGet(newGot.size());
+                total += newGot.size();
+            }
+            long now = Clock.nanoTime();
+            if (network.nextArrival() - now > 0)
+                Clock.advance(now + Constants.TIMER_TICK);
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length != 4) {
+            System.out.println("Usage: Simulation N CONFIG SECONDS OUTPUT_DIR");
+            return;
+        }
+        if (!Constants.TRANSPORT.equals("sim")) {
+            System.out.println("The simulation needs the simulated network (-Dcs451.transport=sim)");
+            return;
+        }
+        int n = Integer.parseInt(args[0]);
+        String config = args[1];
+        long seconds = Long.parseLong(args[2]);
+        String outDir = args[3];
+
+        // Hosts of the processes, all on the simulated network
+        List<Host> hosts = new ArrayList<>();
+        for (int i = 1; i <= n; i++) {
+            Host host = new Host();
+            host.populate(Integer.toString(i), "127.0.0.1", Integer.toString(BASE_PORT + i));
+            hosts.add(host);
+        }
+        int m = Main.parseConfig(config, 0, new HashSet<>());
+        System.out.println("Simulating " + n + " processes broadcasting " + m + " messages on "
+                + SimulatedNetwork.get());
+
+        // Start every process with its output log and its deliver thread (just create it in event loop mode)
+        if (Constants.EVENT_LOOP)
+            Clock.startVirtual();
+        LCausal[] processes = new LCausal[n];
+        OutputLog[] logs = new OutputLog[n];
+        BenchmarkRecorder[] recorders = new BenchmarkRecorder[n];
+        Metrics[] metrics = new Metrics[n];
+        Tracer[] tracers = new Tracer[n];
+        AtomicLong[] delivered = new AtomicLong[n];
+        long start = Clock.nanoTime();
+        long wallStart = System.nanoTime();
+        for (Host host: hosts) {
+            int i = host.getId();
+            HashSet<Integer> influences = new HashSet<>();
+            Main.parseConfig(config, i, influences);
+            try {
+                logs[i-1] = OutputLog.open(new File(outDir, String.format("proc%02d.output", i)).getPath(),
+                        (long) m * (n + 1));
+            } catch (IOException e) {
+                System.out.println("Impossible to write " + e.toString());
+                return;
+            }
+            delivered[i-1] = new AtomicLong();
+            recorders[i-1] = new BenchmarkRecorder(n, m, Constants.BENCH_SAMPLE);
+            metrics[i-1] = new Metrics();
+            if (Constants.METRICS)
+                metrics[i-1].startReporter(metricsName(outDir, i), Constants.METRICS_PERIOD);
+            tracers[i-1] = new Tracer(Constants.TRACE_SAMPLE);
+            LinkedBlockingQueue<MessagePacket> messageDelivered = tracers[i-1].queue("lcausal_to_main");
+            try {
+                processes[i-1] = new LCausal(hosts, i, messageDelivered, null, logs[i-1], recorders[i-1], metrics[i-1],
+                        tracers[i-1], m, influences);
+            } catch (IOException e) {
+                System.out.println("Impossible to open the transports: " + e.toString());
+                return;
+            }
+            if (!Constants.EVENT_LOOP)
+                new Deliver(messageDelivered, logs[i-1], delivered[i-1]).start();
+        }
+
+        // Run or wait until every process delivered every message (or the time is over)
+        long expected = (long) n * n * m;
+        long end = start + seconds * 1000000000L;
+        if (Constants.EVENT_LOOP)
+            runEventLoop(processes, logs, delivered, expected, end);
+        else {
+            while (delivered(delivered) < expected && System.nanoTime() < end)
+                Thread.sleep(100);
+        }
+        long total = delivered(delivered);
+        double elapsed = (Clock.nanoTime() - start) / 1e9;
+        double wallElapsed = (System.nanoTime() - wallStart) / 1e9;
+
+        // Stop logging and write what's left
+        for (OutputLog log: logs) {
+            synchronized (log) {
+                log.close();
+            }
+        }
+        for (int i = 1; i <= n; i++) {
+            recorders[i-1].write(new File(outDir, String.format("proc%02d.output.bench", i)).getPath());
+            if (Constants.METRICS)
+                metrics[i-1].write(metricsName(outDir, i));
+            tracers[i-1].write(new File(outDir, String.format("proc%02d.output.trace", i)).getPath());
+        }
+        SimulatedNetwork network = SimulatedNetwork.get();
+        if (Clock.isVirtual())
+            System.out.println("Delivered " + total + "/" + expected + " messages in " + String.format("%.3f", elapsed)
+                    + " s of virtual time (" + String.format("%.3f", wallElapsed) + " s, "
+                    + String.format("%.0f", total / wallElapsed) + " messages/s of wall time)");
+        else
+            System.out.println("Delivered " + total + "/" + expected + " messages in " + String.format("%.3f", elapsed)
+                    + " s (" + String.format("%.0f", total / elapsed) + " messages/s)");
+        System.out.println("Datagrams sent " + network.getSent() + ", lost " + network.getLost()
+                + ", duplicated " + network.getDuplicated() + ", bytes " + network.getBytes());
+        System.exit(total == expected ? 0 : 1);
+    }
+
+    /**
+     * @param delivered number of messages delivered by process
+     * @return number of messages delivered by all the processes
+     */
+    private static long delivered(AtomicLong[] delivered) {
+        long total = 0;
+        for (AtomicLong d: delivered)
+            total += d.get();
+        return total;
+    }
+
+    /**
+     * @param outDir output directory
+     * @param id id of the process
+     * @return path of the metrics of the process
+     */
+    private static String metricsName(String outDir, int id) {
+        return new File(outDir, String.format("proc%02d.output.metrics", id)).getPath();
+    }
+}
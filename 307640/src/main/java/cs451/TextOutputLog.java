@@ -0,0 +1,184 @@
+package cs451;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Output log writing the events as text lines ("b lsn", "d pid lsn") to the output file as they happen
+ * Events are appended to a queue and a background thread writes them in a buffered file,
+ * so at shutdown only the events still in the queue have to be written
+ * The queue is bounded, so memory stays flat: if the writer falls behind, the threads logging wait for it
+ */
+public class TextOutputLog implements OutputLog {
+    private static final int MAX_PENDING = 1 << 16; // Maximum events waiting to be written
+    private static final long OFFER_TIMEOUT = 100; // Time to wait for room before checking the writer (milliseconds)
+    private final String outName; // Output file
+    private final LinkedBlockingQueue<String> events = new LinkedBlockingQueue<>(MAX_PENDING); // Events to write
+    private final Writer writer; // Thread writing the events
+    // True after close() or if the writer failed, events added later are not written
+    private volatile boolean closed = false;
+
+    /**
+     * Create the output file and start writing events
+     * @param outName output file path
+     * @throws IOException if the file can't be created
+     */
+    public TextOutputLog(String outName) throws IOException {
+        this.outName = outName;
+        this.writer = new Writer(new BufferedWriter(new FileWriter(outName), 1 << 16));
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Class (thread) writing the events of the queue to the file, in order
+     */
+    private class Writer extends Thread {
+        private final BufferedWriter fw; // Buffered output file
+
+        /**
+         * @param fw buffered output file
+         */
+        Writer(BufferedWriter fw) {
+            this.fw = fw;
+        }
+
+        /**
+         * Run the writer thread until the log is closed (close() interrupts it)
+         */
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    // Get everything in the queue to write a batch
+                    List<String> batch = new ArrayList<>();
+                    try {
+                        batch.add(events.take());
+                    } catch (InterruptedException e) {
+                        if (!closed)
+                            continue;
+                        // Closed: nothing can be added anymore, write what's left and flush
+                        events.drainTo(batch);
+                        write(batch);
+                        fw.close();
+                        return;
+                    }
+                    events.drainTo(batch);
+                    write(batch);
+                    // Keep the file up to date when there is nothing else to write
+                    if (events.isEmpty())
+                        fw.flush();
+                }
+            } catch (IOException e) {
+                System.out.println("Impossible to write " + e.toString());
+                // Nothing will be written anymore: stop logging, so no one waits for room in the queue
+                closed = true;
+                events.clear();
+            }
+        }
+
+        /**
+         * @param batch event lines to write
+         * @throws IOException if they can't be written
+         */
+        private void write(List<String> batch) throws IOException {
+            for (String event: batch) {
+                fw.write(event);
+                fw.write('\n');
+            }
+        }
+    }
+
+    /**
+     * Add an event line to the queue of the writer, waiting for room if the writer is behind
+     * (the event is dropped if the log is closed or the writer stopped in the meantime)
+     * @param event the event line
+     */
+    private synchronized void add(String event) {
+        try {
+            while (!closed && writer.isAlive()) {
+                if (events.offer(event, OFFER_TIMEOUT, TimeUnit.MILLISECONDS))
+                    return;
+            }
+        } catch (InterruptedException e) {
+            System.out.println("Interrupted logging an event: " + e.toString());
+        }
+    }
+
+    /**
+     * Log the broadcast of a message
+     * @param lsn lsn of the message
+     */
+    @Override
+    public void broadcast(int lsn) {
+        add("b " + lsn);
+    }
+
+    /**
+     * Log the delivery of a message
+     * @param pid origin of the message
+     * @param lsn lsn of the message
+     */
+    @Override
+    public void deliver(int pid, int lsn) {
+        add("d " + pid + " " + lsn);
+    }
+
+    /**
+     * Close the log: events added from now on are not written, the ones before are written and flushed
+     * Waits until the writer thread is done
+     */
+    @Override
+    public synchronized void close() {
+        if (closed)
+            return;
+        closed = true;
+        writer.interrupt();
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            System.out.println("Interrupted waiting for the output writer: " + e.toString());
+        }
+    }
+
+    /**
+     * Check equality
+     * @param o Another object
+     * @return true/false if objects are or not the same
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        TextOutputLog outputLog = (TextOutputLog) o;
+        return closed == outputLog.closed &&
+                Objects.equals(outName, outputLog.outName) &&
+                Objects.equals(events, outputLog.events);
+    }
+
+    /**
+     * @return hashcode
+     */
+    @Override
+    public int hashCode() {
+        return Objects.hash(outName, events, closed);
+    }
+
+    /**
+     * @return string log representation
+     */
+    @Override
+    public String toString() {
+        return "TextOutputLog{" +
+                "outName='" + outName + '\'' +
+                ", toWrite=" + events.size() +
+                ", closed=" + closed +
+                '}';
+    }
+}
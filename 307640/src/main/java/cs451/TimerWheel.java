@@ -0,0 +1,224 @@
+package cs451;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Hashed timer wheel keeping the retransmission timers of the packets waiting for an ACK
+ * A timer expiring at time t is in the slot (t / tick) % slots: at every check only the slots of the ticks
+ * passed since the last check are looked at, so the cost depends on the timers expiring and not on the packets in flight.
+ * Timers are cancelled lazily: a timer is stale when its packet was ACKed or sent again after it was started,
+ * which the caller checks when the timer expires. Not thread safe (in the Perfect Link it's guarded by the lock of its LinkState)
+ */
+public class TimerWheel {
+    private final ArrayList<ArrayList<Timer>> wheel; // Timers by slot
+    private final long tick; // Duration of a slot (nanoseconds)
+    private long lastTick; // Last tick checked
+    private int size = 0; // Number of timers in the wheel
+
+    /**
+     * Timer of a packet sent at some time
+     */
+    public static class Timer {
+        private final Packet packet; // The packet
+        private final int lsn; // The packet lsn on the link
+        private final long sentAt; // Time the packet was sent
+        private final long deadline; // Time the timer expires
+
+        /**
+         * @param packet the packet
+         * @param lsn the packet lsn on the link
+         * @param sentAt time the packet was sent
+         * @param deadline time the timer expires
+         */
+        public Timer(Packet packet, int lsn, long sentAt, long deadline) {
+            this.packet = packet;
+            this.lsn = lsn;
+            this.sentAt = sentAt;
+            this.deadline = deadline;
+        }
+
+        /**
+         * @return the packet
+         */
+        public Packet getPacket() {
+            return packet;
+        }
+
+        /**
+         * @return the packet lsn on the link
+         */
+        public int getLsn() {
+            return lsn;
+        }
+
+        /**
+         * @return time the packet was sent
+         */
+        public long getSentAt() {
+            return sentAt;
+        }
+
+        /**
+         * @return time the timer expires
+         */
+        public long getDeadline() {
+            return deadline;
+        }
+
+        /**
+         * Check equality
+         * @param o Another object
+         * @return true/false if objects are or not the same
+         */
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Timer timer = (Timer) o;
+            return lsn == timer.lsn &&
+                    sentAt == timer.sentAt &&
+                    deadline == timer.deadline &&
+                    Objects.equals(packet, timer.packet);
+        }
+
+        /**
+         * @return hashcode
+         */
+        @Override
+        public int hashCode() {
+            return Objects.hash(packet, lsn, sentAt, deadline);
+        }
+    }
+
+    /**
+     * Create a timer wheel
+     * @param slots number of slots (rounded up to a power of 2)
+     * @param tick duration of a slot (nanoseconds)
+     * @param now current time
+     */
+    public TimerWheel(int slots, long tick, long now) {
+        int numSlots = Integer.highestOneBit(Math.max(slots, 1));
+        if (numSlots < slots)
+            numSlots <<= 1;
+        this.wheel = new ArrayList<>(numSlots);
+        for (int i = 0; i < numSlots; i++)
+            wheel.add(new ArrayList<>());
+        this.tick = tick;
+        this.lastTick = Math.floorDiv(now, tick);
+    }
+
+    /**
+     * Start the timer of a packet
+     * @param packet the packet
+     * @param lsn the packet lsn on the link
+     * @param sentAt time the packet was sent
+     * @param deadline time the timer expires
+     */
+    public void schedule(Packet packet, int lsn, long sentAt, long deadline) {
+        // A timer already expired goes in the next slot to check
+        long t = Math.max(Math.floorDiv(deadline, tick), lastTick + 1);
+        wheel.get((int) (t & (wheel.size() - 1))).add(new Timer(packet, lsn, sentAt, deadline));
+        size++;
+    }
+
+    /**
+     * Remove from the wheel all the timers expired up to now (with the precision of a tick)
+     * The timers of the next rounds of the wheel are kept in their slot
+     * @param now current time
+     * @return the expired timers
+     */
+    public List<Timer> expire(long now) {
+        List<Timer> expired = new ArrayList<>();
+        long nowTick = Math.floorDiv(now, tick);
+        // Slots to check (if more than a round passed, all the slots once)
+        long numTicks = Math.min(nowTick - lastTick, wheel.size());
+        for (long t = nowTick - numTicks + 1; t <= nowTick; t++) {
+            ArrayList<Timer> slot = wheel.get((int) (t & (wheel.size() - 1)));
+            // Move the expired timers out of the slot, compacting the others
+            int kept = 0;
+            for (int i = 0; i < slot.size(); i++) {
+                Timer timer = slot.get(i);
+                if (Math.floorDiv(timer.getDeadline(), tick) <= nowTick)
+                    expired.add(timer);
+                else
+                    slot.set(kept++, timer);
+            }
+            slot.subList(kept, slot.size()).clear();
+        }
+        lastTick = Math.max(lastTick, nowTick);
+        size -= expired.size();
+        return expired;
+    }
+
+    /**
+     * Earliest deadline of the timers in the wheel (stale timers count: they are removed only when they expire)
+     * The slots are looked at in order from the next tick to check, so usually only the first ones are scanned
+     * @return the earliest deadline, Long.MAX_VALUE if there is no timer
+     */
+    public long nextDeadline() {
+        if (size == 0)
+            return Long.MAX_VALUE;
+        // First slot with a timer of this round of the wheel (or one already expired, kept in the next slot to check)
+        for (long t = lastTick + 1; t <= lastTick + wheel.size(); t++) {
+            long next = Long.MAX_VALUE;
+            for (Timer timer: wheel.get((int) (t & (wheel.size() - 1)))) {
+                if (Math.floorDiv(timer.getDeadline(), tick) <= t)
+                    next = Math.min(next, timer.getDeadline());
+            }
+            if (next != Long.MAX_VALUE)
+                return next;
+        }
+        // Every timer is in a next round of the wheel
+        long next = Long.MAX_VALUE;
+        for (ArrayList<Timer> slot: wheel) {
+            for (Timer timer: slot)
+                next = Math.min(next, timer.getDeadline());
+        }
+        return next;
+    }
+
+    /**
+     * @return duration of a slot (nanoseconds)
+     */
+    public long getTick() {
+        return tick;
+    }
+
+    /**
+     * Check equality
+     * @param o Another object
+     * @return true/false if objects are or not the same
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        TimerWheel that = (TimerWheel) o;
+        return tick == that.tick &&
+                lastTick == that.lastTick &&
+                size == that.size &&
+                Objects.equals(wheel, that.wheel);
+    }
+
+    /**
+     * @return hashcode
+     */
+    @Override
+    public int hashCode() {
+        return Objects.hash(wheel, tick, lastTick, size);
+    }
+
+    /**
+     * @return string wheel representation
+     */
+    @Override
+    public String toString() {
+        return "TimerWheel{" +
+                "slots=" + wheel.size() +
+                ", tick=" + tick +
+                ", size=" + size +
+                '}';
+    }
+}
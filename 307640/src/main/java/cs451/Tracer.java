@@ -0,0 +1,261 @@
+package cs451;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Trace the hand-offs between the threads of the layers: the queues are created by the tracer and, when it's
+ * enabled, 1 element every sample enqueued is timestamped, so its wait in the queue (time from the enqueue to the
+ * dequeue) and the depth of the queue when it was enqueued are recorded
+ * The queues are named like their metrics gauges (FROM_to_TO), so the hop backing up shows the slow layer
+ * The samples are written at the end of the run as text lines (times are System.nanoTime()):
+ *   q ID NAME SAMPLE
+ *   ID ENQUEUE_TIME WAIT DEPTH
+ * and summarized by hop with: java -cp bin cs451.Tracer TRACE...
+ */
+public class Tracer {
+    private static final int MAX_SAMPLES = 1 << 18; // Samples kept by queue (the next ones are dropped)
+
+    private final int sample; // 1 element every sample enqueued is traced (0 if disabled)
+    private final List<TracedQueue<?>> queues = new CopyOnWriteArrayList<>(); // Queues traced
+
+    /**
+     * Queue that timestamps the sampled elements. The elements are counted as they are enqueued and dequeued
+     * (the queue is FIFO), so the k-th element dequeued is the k-th enqueued
+     * Only put, offer, add(All), take, poll and drainTo are traced, and they must be the only operations used
+     * @param <E> type of the elements
+     */
+    @SuppressWarnings("serial") // Never serialized
+    private static class TracedQueue<E> extends LinkedBlockingQueue<E> {
+        private final String name; // Name of the hop
+        private final int sample; // 1 element every sample enqueued is traced
+        private final Object lockPut = new Object(); // Lock counting the elements enqueued
+        private final Object lockTake = new Object(); // Lock counting the elements dequeued
+        // Lock of the samples recorded (not lockTake: it's held while the consumer waits for an element)
+        private final Object lockSamples = new Object();
+        private long enqueued = 0; // Elements enqueued
+        private long dequeued = 0; // Elements dequeued
+        // Sampled elements still in the queue: {index, enqueue time, depth}, in enqueue order
+        private final ConcurrentLinkedQueue<long[]> stamps = new ConcurrentLinkedQueue<>();
+        private long[] times = new long[1024]; // Enqueue times of the samples
+        private long[] waits = new long[1024]; // Waits of the samples
+        private int[] depths = new int[1024]; // Depths of the queue at the enqueue of the samples
+        private int samples = 0; // Samples recorded
+        private long dropped = 0; // Samples dropped (no room left)
+
+        /**
+         * @param name name of the hop
+         * @param sample 1 element every sample enqueued is traced
+         */
+        TracedQueue(String name, int sample) {
+            this.name = name;
+            this.sample = sample;
+        }
+
+        /**
+         * Enqueue an element, stamped before it's visible so the dequeue always finds the stamp
+         * @param e the element
+         */
+        private void enqueue(E e) {
+            synchronized (lockPut) {
+                if (enqueued % sample == 0)
+                    stamps.add(new long[]{enqueued, System.nanoTime(), size() + 1});
+                enqueued++;
+                super.offer(e); // Unbounded, never fails
+            }
+        }
+
+        /**
+         * Record the wait of the sampled elements just dequeued (called with lockTake)
+         * @param n elements dequeued
+         */
+        private void dequeued(int n) {
+            if (n == 0)
+                return;
+            dequeued += n;
+            long now = System.nanoTime();
+            long[] stamp;
+            while ((stamp = stamps.peek()) != null && stamp[0] < dequeued) {
+                stamps.poll();
+                synchronized (lockSamples) {
+                    if (samples == MAX_SAMPLES) {
+                        dropped++;
+                        continue;
+                    }
+                    if (samples == times.length) {
+                        times = Arrays.copyOf(times, 2 * samples);
+                        waits = Arrays.copyOf(waits, 2 * samples);
+                        depths = Arrays.copyOf(depths, 2 * samples);
+                    }
+                    times[samples] = stamp[1];
+                    waits[samples] = now - stamp[1];
+                    depths[samples] = (int) stamp[2];
+                    samples++;
+                }
+            }
+        }
+
+        @Override
+        public void put(E e) {
+            enqueue(e);
+        }
+
+        @Override
+        public boolean offer(E e) {
+            enqueue(e);
+            return true;
+        }
+
+        @Override
+        public boolean offer(E e, long timeout, TimeUnit unit) {
+            enqueue(e);
+            return true;
+        }
+
+        @Override
+        public E take() throws InterruptedException {
+            synchronized (lockTake) {
+                E e = super.take();
+                dequeued(1);
+                return e;
+            }
+        }
+
+        @Override
+        public E poll() {
+            synchronized (lockTake) {
+                E e = super.poll();
+                dequeued(e == null ? 0 : 1);
+                return e;
+            }
+        }
+
+        @Override
+        public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+            synchronized (lockTake) {
+                E e = super.poll(timeout, unit);
+                dequeued(e == null ? 0 : 1);
+                return e;
+            }
+        }
+
+        @Override
+        public int drainTo(Collection<? super E> c, int maxElements) {
+            synchronized (lockTake) {
+                int n = super.drainTo(c, maxElements);
+                dequeued(n);
+                return n;
+            }
+        }
+    }
+
+    /**
+     * @param sample 1 element every sample enqueued is traced (0 to disable the tracer)
+     */
+    public Tracer(int sample) {
+        this.sample = sample;
+    }
+
+    /**
+     * Create a queue between two threads (a plain one if the tracer is disabled)
+     * @param name name of the hop
+     * @param <E> type of the elements
+     * @return the queue
+     */
+    public <E> LinkedBlockingQueue<E> queue(String name) {
+        if (sample == 0)
+            return new LinkedBlockingQueue<>();
+        TracedQueue<E> queue = new TracedQueue<>(name, sample);
+        queues.add(queue);
+        return queue;
+    }
+
+    /**
+     * Write the samples (nothing if the tracer is disabled)
+     * @param outName path of the file to write
+     */
+    public void write(String outName) {
+        if (sample == 0)
+            return;
+        try (BufferedWriter fw = new BufferedWriter(new FileWriter(outName), 1 << 16)) {
+            for (int id = 0; id < queues.size(); id++) {
+                TracedQueue<?> queue = queues.get(id);
+                synchronized (queue.lockSamples) {
+                    fw.write("q " + id + " " + queue.name + " " + sample + "\n");
+                    for (int i = 0; i < queue.samples; i++)
+                        fw.write(id + " " + queue.times[i] + " " + queue.waits[i] + " " + queue.depths[i] + "\n");
+                    if (queue.dropped > 0)
+                        System.out.println("Trace of " + queue.name + ": " + queue.dropped + " samples dropped");
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Impossible to write " + e.toString());
+        }
+    }
+
+    /**
+     * @return string tracer representation
+     */
+    @Override
+    public String toString() {
+        return "Tracer{" +
+                "sample=" + sample +
+                ", queues=" + queues.size() +
+                '}';
+    }
+
+    /**
+     * Summarize trace files: for every hop (of every file) the samples, the wait (microseconds)
+     * and the depth of the queue
+     * Usage: java -cp bin cs451.Tracer TRACE...
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("Usage: Tracer TRACE...");
+            return;
+        }
+        // Hops in the order they appear, with the histograms of their waits and depths
+        Map<String, Metrics.Histogram[]> hops = new LinkedHashMap<>();
+        for (String trace: args) {
+            List<Metrics.Histogram[]> byId = new ArrayList<>();
+            try (BufferedReader reader = new BufferedReader(new FileReader(trace))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] splits = line.split(" ");
+                    if (splits[0].equals("q")) {
+                        byId.add(hops.computeIfAbsent(splits[2], k ->
+                                new Metrics.Histogram[]{new Metrics.Histogram(), new Metrics.Histogram()}));
+                        continue;
+                    }
+                    Metrics.Histogram[] hop = byId.get(Integer.parseInt(splits[0]));
+                    hop[0].record(Long.parseLong(splits[2]) / 1000);
+                    hop[1].record(Long.parseLong(splits[3]));
+                }
+            }
+        }
+        System.out.println(String.format("%-32s %8s %10s %10s %10s %8s %8s", "hop", "samples", "wait p50",
+                "wait p99", "wait max", "depth50", "depth99"));
+        for (Map.Entry<String, Metrics.Histogram[]> e: hops.entrySet()) {
+            Metrics.Histogram wait = e.getValue()[0];
+            Metrics.Histogram depth = e.getValue()[1];
+            System.out.println(String.format("%-32s %8d %10d %10d %10d %8d %8d", e.getKey(), wait.getCount(),
+                    wait.getPercentile(0.5), wait.getPercentile(0.99), wait.getPercentile(1),
+                    depth.getPercentile(0.5), depth.getPercentile(0.99)));
+        }
+        System.out.println("(waits in microseconds, depth of the queue when the sample was enqueued, "
+                + "the hops of every trace are merged by name)");
+    }
+}
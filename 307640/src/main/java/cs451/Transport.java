@@ -0,0 +1,93 @@
+package cs451;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Datagram transport used by the Perfect Link to send and receive its datagrams
+ * The implementation is chosen at startup with the system property cs451.transport (see Constants.TRANSPORT):
+ * - socket: blocking java.net.DatagramSocket (default)
+ * - nio: blocking java.nio.channels.DatagramChannel with direct buffers
+ * - sim: simulated network inside the JVM (see SimulatedNetwork), to run every process in one JVM
+ * In event loop mode (see Constants.EVENT_LOOP) the transport must be a SelectableTransport: the nio transport is
+ * used (with a non blocking receiving channel and a selector) unless the simulated one is chosen
+ * With more receivers (see Constants.RECEIVERS) every receiver opens its own transport, binding the receiving
+ * socket with SO_REUSEPORT (if supported, see supportsReusePort): the kernel spreads the datagrams among them
+ * by sender address
+ */
+public interface Transport extends Closeable {
+
+    /**
+     * @return the transport used: Constants.TRANSPORT, except in event loop mode where it's nio unless it's sim
+     */
+    static String name() {
+        if (Constants.EVENT_LOOP && !Constants.TRANSPORT.equals("sim"))
+            return "nio";
+        return Constants.TRANSPORT;
+    }
+
+    /**
+     * @return true if the transport chosen in Constants.TRANSPORT can bind more receiving sockets on a port
+     * with SO_REUSEPORT (never for the simulated network, which has one transport by port)
+     * @throws IOException if the socket used to check can't be opened
+     */
+    static boolean supportsReusePort() throws IOException {
+        if (name().equals("sim"))
+            return false;
+        if (name().equals("nio")) {
+            try (DatagramChannel dc = DatagramChannel.open()) {
+                return dc.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+            }
+        }
+        try (DatagramSocket ds = new DatagramSocket(null)) {
+            return ds.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        }
+    }
+
+    /**
+     * Open the transport chosen in Constants.TRANSPORT
+     * @param port port to receive on
+     * @param reusePort true to bind the receiving socket with SO_REUSEPORT (shared with other transports),
+     *                  only if supportsReusePort()
+     * @return the transport
+     * @throws IOException if the sockets can't be opened (the ones already opened are closed)
+     */
+    static Transport open(int port, boolean reusePort) throws IOException {
+        if (name().equals("sim"))
+            return SimulatedNetwork.get().open(port, reusePort);
+        if (name().equals("nio"))
+            return new DatagramChannelTransport(port, reusePort);
+        return new DatagramSocketTransport(port, reusePort);
+    }
+
+    /**
+     * Allocate a buffer suited for this transport
+     * Buffers are meant to be allocated once and reused by the caller for every send/receive
+     * @param size buffer capacity
+     * @return the buffer
+     */
+    ByteBuffer allocate(int size);
+
+    /**
+     * Send the bytes between position and limit of the buffer as one datagram
+     * Can be called by different threads at the same time
+     * @param buf buffer to send (position is moved to the limit)
+     * @param dest destination address
+     * @throws IOException if the datagram can't be sent
+     */
+    void send(ByteBuffer buf, SocketAddress dest) throws IOException;
+
+    /**
+     * Wait for a datagram and receive it into the buffer
+     * The buffer is cleared before receiving and flipped after, so it's ready to be read
+     * @param buf buffer to receive into (allocated by this transport)
+     * @return the address of the sender
+     * @throws IOException if the datagram can't be received
+     */
+    SocketAddress receive(ByteBuffer buf) throws IOException;
+}
@@ -1,5 +1,6 @@
 package cs451;
 
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.*;
@@ -8,12 +9,18 @@ import java.util.stream.Collectors;
 
 /**
  * URB layer class to ensure a uniform reliable broadcast in delivery
+ * The acks of a message are the set of processes that have seen it (a bit by pid, so a process counts once)
+ * A message is delivered when its number of acks reaches minCorrect (so exactly once, without scanning pending)
+ * A message seen by every process is retired: it's removed from pending and ack
+ * and only its lsn is kept by origin (watermark + bitmap above it)
+ * In event loop mode (see Constants.EVENT_LOOP) no thread is started: LCausal calls broadcastBatch and step()
  */
 public class UniformReliableBroadcast {
 
     private final PerfectLink pl;
-    private final HashSet<MessagePacket> delivered = new HashSet<>(); // Already delivered messages
     private final HashSet<MessagePacket> pending = new HashSet<>(); // Yet to deliver messages
+    // Retired messages by origin (used only by the receiving thread)
+    private final HashMap<Integer, ReceiveWindow> retired = new HashMap<>();
     private final List<Host> hosts; // List of hosts
     private final int id;
     private final int minCorrect; // Minimum number of correct processes
@@ -21,9 +28,14 @@ public class UniformReliableBroadcast {
     private final LinkedBlockingQueue<MessagePacket> messageToSendUp; // Messages to send received from LCausal
     private final LinkedBlockingQueue<MessagePacket> messageDeliveredDown; // Messages delivered from PL
     private final LinkedBlockingQueue<MessagePacket> messageToDeliverUp; // Messages to deliver to LCausal
-    private static final HashMap<MessagePacket, Integer> ack = new HashMap<>(); // Count number of acks for each message
-    private static final Object lockPending = new Object(); // Lock to avoid concurrent modifications to pending
-    private static final Object lockAck = new Object(); // Lock to avoid concurrent modifications to ack
+    // Processes that have seen each message (bit pid is set if process pid has seen it)
+    private final HashMap<MessagePacket, BitSet> ack = new HashMap<>();
+    private final Object lockPending = new Object(); // Lock to avoid concurrent modifications to pending
+    private final Object lockAck = new Object(); // Lock to avoid concurrent modifications to ack
+    private final BenchmarkRecorder recorder; // Benchmark recorder of the process
+    private final Metrics.Counter deliveredCount; // Messages delivered to LCausal
+    private final Metrics.Counter relayedCount; // Messages relayed (broadcast again for the first time)
+    private final Metrics.Histogram batchTime; // Time to process a batch delivered by the Perfect Link
 
     /**
      * Init the URB layer and start sending/delivering
@@ -31,20 +43,45 @@ public class UniformReliableBroadcast {
      * @param id id of this process
      * @param messageToDeliverUp queue to send message to the layer above (LCausal) for delivery
      * @param messageToSendUp queue to receive message from the layer above (LCausal) for sending
+     * @param recorder benchmark recorder of the process
+     * @param metrics metrics of the process
+     * @param tracer tracer of the queues of the process
+     * @throws IOException if the transports of the Perfect Link can't be opened
      */
     public UniformReliableBroadcast(List<Host> hosts, int id, LinkedBlockingQueue<MessagePacket> messageToSendUp,
-                                    LinkedBlockingQueue<MessagePacket> messageToDeliverUp) {
+                                    LinkedBlockingQueue<MessagePacket> messageToDeliverUp, BenchmarkRecorder recorder,
+                                    Metrics metrics, Tracer tracer) throws IOException {
         // Init control structures and Perfect Link
         this.messageToSendUp = messageToSendUp;
         this.messageToDeliverUp = messageToDeliverUp;
-        this.messageDeliveredDown = new LinkedBlockingQueue<>();
-        this.messageToSendDown = new LinkedBlockingQueue<>();
-        this.pl = new PerfectLink(id, hosts.get(id-1).getPort(), hosts, messageToSendDown, messageDeliveredDown);
+        this.recorder = recorder;
+        this.messageDeliveredDown = tracer.queue("pl_to_urb");
+        this.messageToSendDown = tracer.queue("urb_to_pl{sender=0}"); // Read by the first sender of the PL
+        this.pl = new PerfectLink(id, hosts.get(id-1).getPort(), hosts, messageToSendDown, messageDeliveredDown,
+                recorder, metrics, tracer);
         this.id = id;
         int lenHost = hosts.size();
         this.minCorrect = lenHost/2 + 1; // >N/2 correct hosts by assumption
         this.hosts = hosts;
-        // Start delivering and broadcasting
+        for (Host h: hosts)
+            retired.put(h.getId(), new ReceiveWindow());
+        this.deliveredCount = metrics.counter("urb.delivered");
+        this.relayedCount = metrics.counter("urb.relayed");
+        this.batchTime = metrics.histogram("urb.batch_ns");
+        metrics.gauge("urb.pending", () -> {
+            synchronized (lockPending) {
+                return pending.size();
+            }
+        });
+        metrics.gauge("urb.acks", () -> {
+            synchronized (lockAck) {
+                return ack.size();
+            }
+        });
+        metrics.gauge("queue.pl_to_urb", messageDeliveredDown::size);
+        // Start delivering and broadcasting (in event loop mode LCausal calls broadcastBatch() and step())
+        if (Constants.EVENT_LOOP)
+            return;
         receiveAndDeliver();
         broadcast();
     }
@@ -71,27 +108,54 @@ public class UniformReliableBroadcast {
                 List<MessagePacket> sentMessages = new LinkedList<>();
                 sentMessages.add(message);
                 messageToSendUp.drainTo(sentMessages);
-                // Add the process id in front of the message lsn
-                sentMessages = sentMessages.stream().map(mP ->
-                        new MessagePacket(String.format("%d %s", id, mP.getMessage()), mP.getW()))
-                        .collect(Collectors.toList());
-                synchronized (lockPending) {
-                    // Add the messages to the pending set (checked later in delivering)
-                    pending.addAll(sentMessages);
-                }
-                synchronized (lockAck) {
-                    // Add the message to the Hashmap of acked, stating that one process (myself) delivered it
-                    // This is basically a BEB deliver
-                    // to itself without going into the network
-                    for (MessagePacket sentMessage: sentMessages)
-                            ack.put(sentMessage, 1);
-                }
-                // Send the messages, indicating they come from LCausal
-                send(sentMessages, Packet.packType.LCausal);
+                List<MessagePacket> deliverable = broadcastBatch(sentMessages);
+                if (deliverable.size()!=0)
+                    messageToDeliverUp.addAll(deliverable);
             }
         }
     }
 
+    /**
+     * Broadcast a batch of messages of LCausal
+     * Called by the broadcast thread, or directly by LCausal in event loop mode
+     * @param messages the messages to broadcast
+     * @return the messages that can be delivered right away (only if I'm the only process)
+     */
+    public List<MessagePacket> broadcastBatch(List<MessagePacket> messages) {
+        // Set the process id as origin of the message lsn
+        List<MessagePacket> sentMessages = messages.stream().map(mP ->
+                new MessagePacket(id, mP.getLsn(), mP.getW()))
+                .collect(Collectors.toList());
+        synchronized (lockPending) {
+            // Add the messages to the pending set (checked later in delivering)
+            pending.addAll(sentMessages);
+        }
+        synchronized (lockAck) {
+            // Add the message to the Hashmap of acked, stating that one process (myself) delivered it
+            // This is basically a BEB deliver
+            // to itself without going into the network
+            for (MessagePacket sentMessage: sentMessages)
+                    ack.put(sentMessage, seenByMe());
+        }
+        // Send the messages, indicating they come from LCausal
+        send(sentMessages, Packet.packType.LCausal);
+        // If I'm enough to deliver (I'm the only process), deliver right away
+        if (minCorrect > 1)
+            return new LinkedList<>();
+        deliveredCount.add(sentMessages.size());
+        sentMessages.forEach(mP -> recorder.deliver(BenchmarkRecorder.Layer.urb, mP.getOrigin(), mP.getLsn()));
+        return sentMessages;
+    }
+
+    /**
+     * @return the acks of a message seen only by me
+     */
+    private BitSet seenByMe() {
+        BitSet seen = new BitSet(hosts.size() + 1);
+        seen.set(id);
+        return seen;
+    }
+
     /**
      * Broadcast a batch of messages (i.e. pass them to the PL) of type given (LCausal or URB, used at PL level)
      * This function basically implement the BEB-broadcast, but avoid to deliver to myself because we've already done
@@ -116,8 +180,8 @@ public class UniformReliableBroadcast {
                     return null;
                 }
             }).collect(Collectors.toList());
-            // Add all the packets to the queue that will be read by Perfect Link
-            messageToSendDown.addAll(packets);
+            // Pass all the packets to the Perfect Link
+            pl.sendPackets(packets);
         }
     }
 
@@ -132,27 +196,15 @@ public class UniformReliableBroadcast {
      * Class (i.e. thread) that will perform the message delivering at URB
      */
     private class Receive extends Thread {
-
-        /**
-         * Check if the given message can be delivered (it was received by at least N/2 processes)
-         * @param key the message to check
-         * @return true if the message can be delivered, false otherwise
-         */
-        private synchronized boolean canDeliver(MessagePacket key) {
-            return ack.getOrDefault(key, 0) >= minCorrect;
-        }
-
         /**
          * Run the receiving thread
          */
         @Override
         public void run() {
-            MessagePacket key;
             while (true) {
                 // Get everything you can from the layer below (Perfect Link) to build a batch
                 // This is basically BEB-delivering, as BEB would just deliver the message to us without doing any check
                 MessagePacket got = null;
-                List<MessagePacket> messagesToSend = new LinkedList<>();
                 try {
                     got = messageDeliveredDown.take();
                 } catch (InterruptedException e) {
@@ -161,64 +213,120 @@ public class UniformReliableBroadcast {
                 List<MessagePacket> gotPacks = new LinkedList<>();
                 gotPacks.add(got);
                 messageDeliveredDown.drainTo(gotPacks);
-                // Process every packet received
-                for (MessagePacket gotPack: gotPacks) {
-                    String[] gotSplit = gotPack.getMessage().split(" ");
-                    // Every header message string can be of two type:
-                    // 1. id m -> Message arrived from the original broadcaster with pid = id
-                    // 2. pidR id m -> Message m from process with pid = id that was relied by pidR
-                    // We get from such string the original pair "id m" and use this as key for the pending/ack maps
-                    if (gotSplit.length == 2)
-                        key = gotPack;
-                    else
-                        key = new MessagePacket(gotSplit[1] + " " + gotSplit[2], gotPack.getW());
+                // After batch is processed, add all deliverable messages to the queue that will be checked by LCausal
+                List<MessagePacket> deliverable = receiveBatch(gotPacks);
+                if (deliverable.size()!=0)
+                    messageToDeliverUp.addAll(deliverable);
+            }
+        }
+    }
 
-                    synchronized (lockAck) { // Need to lock before accessing the map
-                        // If it's the first time message is seen ->
-                        //    add to the ack saying that 2 processes have seen it (myself and the sender)
-                        //    (like before, it's like BEB sending and delivering to ourselves
-                        //     without going to the layer)
-                        if (!ack.containsKey(key))
-                            ack.put(key, 2);
-                        // If we have seen the message before ->
-                        //    Increase the number of acks for the message by 1
-                        else {
-                            Integer oldAck = ack.get(key);
-                            ack.put(key, oldAck + 1);
-                        }
-                    }
+    /**
+     * Process a batch of messages delivered by the Perfect Link (BEB-deliver): count the acks,
+     * relay the messages seen for the first time and retire the ones seen by everyone
+     * Called by the receiving thread, or directly in event loop mode (package-private for the benchmarks)
+     * @param gotPacks the messages delivered by the Perfect Link
+     * @return the messages that can be delivered to LCausal
+     */
+    List<MessagePacket> receiveBatch(List<MessagePacket> gotPacks) {
+        long start = System.nanoTime();
+        MessagePacket key;
+        List<MessagePacket> messagesToSend = new LinkedList<>();
+        List<MessagePacket> gotKeys = new LinkedList<>(); // Keys of the messages received in the batch
+        List<MessagePacket> deliverable = new LinkedList<>(); // Messages that can be delivered now
+        // Process every packet received
+        for (MessagePacket gotPack: gotPacks) {
+            // Every message header can be of two type:
+            // 1. id m -> Message arrived from the original broadcaster with pid = id
+            // 2. pidR id m -> Message m from process with pid = id that was relied by pidR
+            // We get from such header the original pair "id m" and use this as key for the pending/ack maps
+            if (gotPack.getRelayer() == 0)
+                key = gotPack;
+            else
+                key = new MessagePacket(gotPack.getOrigin(), gotPack.getLsn(), gotPack.getW());
+            // Skip the messages already retired
+            if (retired.get(key.getOrigin()).isReceived(key.getLsn()))
+                continue;
+            gotKeys.add(key);
 
-                    // Check if it's the first time we see the message. If it is, add to pending
-                    // and add to set of messages will be broadcasted
-                    if (!pending.contains(key)) {
-                        synchronized (lockPending) {
-                            pending.add(key);
-                        }
-                        MessagePacket sentMessage = new MessagePacket(
-                                String.format("%d %s", id, key.getMessage()), key.getW());
-                        messagesToSend.add(sentMessage);
+            synchronized (lockAck) { // Need to lock before accessing the map
+                // If it's the first time message is seen ->
+                //    add to the ack saying that I have seen it
+                //    (like before, it's like BEB sending and delivering to ourselves
+                //     without going to the layer)
+                BitSet seen = ack.get(key);
+                if (seen == null) {
+                    seen = seenByMe();
+                    ack.put(key, seen);
+                }
+                // Add the process that sent it to us (the relayer, or the origin if not relayed)
+                // A process that sent it before doesn't count again
+                if (!seen.get(gotPack.getSender())) {
+                    seen.set(gotPack.getSender());
+                    // The message can be delivered when it was received by at least N/2 processes:
+                    // deliver it when the acks reach minCorrect (it happens only once)
+                    if (seen.cardinality() == minCorrect) {
+                        deliverable.add(key);
+                        recorder.deliver(BenchmarkRecorder.Layer.urb, key.getOrigin(), key.getLsn());
                     }
                 }
+            }
 
-                // After batch is processed, check what we can deliver
-                List <MessagePacket> deliverable;
+            // Check if it's the first time we see the message. If it is, add to pending
+            // and add to set of messages will be broadcasted
+            if (!pending.contains(key)) {
                 synchronized (lockPending) {
-                    // Filter the pending set by checking the message can be delivered (canDeliver(m))
-                    // and that it wasn't delivered before
-                    deliverable = pending.stream()
-                            .filter(this::canDeliver)
-                            .filter(p -> !delivered.contains(p))
-                            .collect(Collectors.toList());
+                    pending.add(key);
                 }
-                // Add all deliverable messages to delivered set and to the queue that will be checked by LCausal
-                if (deliverable.size()!=0) {
-                    delivered.addAll(deliverable);
-                    messageToDeliverUp.addAll(deliverable);
+                MessagePacket sentMessage = new MessagePacket(
+                        key.getOrigin(), id, key.getLsn(), key.getW());
+                messagesToSend.add(sentMessage);
+            }
+        }
+
+        // Retire the messages seen by every process (already delivered, as minCorrect <= N)
+        // Nobody will send them to us again
+        synchronized (lockPending) {
+            synchronized (lockAck) {
+                for (MessagePacket gotKey: gotKeys) {
+                    if (ack.containsKey(gotKey) && ack.get(gotKey).cardinality() == hosts.size()) {
+                        pending.remove(gotKey);
+                        ack.remove(gotKey);
+                        retired.get(gotKey.getOrigin()).receive(gotKey.getLsn());
+                    }
                 }
-                // Broadcast the messages we added to the pending set to everyone, indicating these are URB messages
-                send(messagesToSend, Packet.packType.URB);
             }
         }
+        // Broadcast the messages we added to the pending set to everyone, indicating these are URB messages
+        send(messagesToSend, Packet.packType.URB);
+        deliveredCount.add(deliverable.size());
+        relayedCount.add(messagesToSend.size());
+        batchTime.record(System.nanoTime() - start);
+        return deliverable;
+    }
+
+    /**
+     * Run a round of URB in event loop mode: run a round of the Perfect Link and process what it delivered
+     * @return the messages that can be delivered to LCausal
+     */
+    public List<MessagePacket> step() {
+        List<MessagePacket> gotPacks = pl.step();
+        return gotPacks.isEmpty() ? new LinkedList<>() : receiveBatch(gotPacks);
+    }
+
+    /**
+     * Wait until the Perfect Link windows let LCausal broadcast a message
+     * @param lsn lsn of the message
+     */
+    public void waitWindowLimit(int lsn) {
+        pl.waitWindowLimit(lsn);
+    }
+
+    /**
+     * @return number of LCausal messages that can be broadcast (see PerfectLink.getWindowLimit)
+     */
+    public int getWindowLimit() {
+        return pl.getWindowLimit();
     }
 
     /**
@@ -241,8 +349,8 @@ public class UniformReliableBroadcast {
         return id == that.id &&
                 minCorrect == that.minCorrect &&
                 Objects.equals(pl, that.pl) &&
-                Objects.equals(delivered, that.delivered) &&
                 Objects.equals(pending, that.pending) &&
+                Objects.equals(retired, that.retired) &&
                 Objects.equals(hosts, that.hosts) &&
                 Objects.equals(messageToSendDown, that.messageToSendDown) &&
                 Objects.equals(messageToSendUp, that.messageToSendUp) &&
@@ -255,7 +363,7 @@ public class UniformReliableBroadcast {
      */
     @Override
     public int hashCode() {
-        return Objects.hash(pl, delivered, pending, hosts, id, minCorrect, messageToSendDown,
+        return Objects.hash(pl, pending, retired, hosts, id, minCorrect, messageToSendDown,
                 messageToSendUp, messageDeliveredDown, messageToDeliverUp);
     }
 }
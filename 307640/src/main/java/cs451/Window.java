@@ -1,15 +1,17 @@
 package cs451;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Objects;
 
 /**
  * Window class representing a sliding (and congestion) window
  * which is kept by process
+ * ACKs are kept in a ring of bits (long words): lsn is at bit lsn % capacity, for lsns in [lowerBound, lowerBound + capacity)
  */
 public class Window {
     private int lowerBound; // Window lower bound
     private int upperBound; // Window upper bound
-    private final ArrayList<Boolean> ackPack; // Packets to ack/already ack
+    private long[] ackPack; // Packets to ack/already ack (ring of bits, capacity is a power of 2 multiple of 64)
     private int threshold = Constants.INIT_THRESH; // Threshold for congestion
 
     /**
@@ -19,10 +21,57 @@ public class Window {
     public Window(int windowSize) {
         this.lowerBound = 1;
         this.upperBound = windowSize;
-        this.ackPack = new ArrayList<>(windowSize);
-        // Init the ACKs list
-        for (int i = 0; i < upperBound; i++)
-            ackPack.add(false);
+        this.ackPack = new long[wordsFor(windowSize)];
+    }
+
+    /**
+     * @param size number of bits needed
+     * @return the number of words of a ring with at least size bits (power of 2)
+     */
+    private static int wordsFor(int size) {
+        int words = Math.max((size + 63) >>> 6, 1);
+        return Integer.highestOneBit(words) == words ? words : Integer.highestOneBit(words) << 1;
+    }
+
+    /**
+     * @return number of packets the ring can keep track of (at most this many are newly ACKed by markPackets)
+     */
+    public int capacity() {
+        return ackPack.length << 6;
+    }
+
+    /**
+     * Get the ACK bit of a packet (the lsn must be inside the ring)
+     * @param lsn the packet lsn
+     * @return true if the packet was ACKed
+     */
+    private boolean get(int lsn) {
+        return (ackPack[(lsn >>> 6) & (ackPack.length - 1)] & (1L << lsn)) != 0;
+    }
+
+    /**
+     * Set the ACK bit of a packet (the lsn must be inside the ring)
+     * @param lsn the packet lsn
+     */
+    private void set(int lsn) {
+        ackPack[(lsn >>> 6) & (ackPack.length - 1)] |= 1L << lsn;
+    }
+
+    /**
+     * Make the ring big enough to keep track of size packets from the lower bound
+     * @param size number of packets
+     */
+    private void ensureCapacity(int size) {
+        if (size <= capacity())
+            return;
+        // Copy the ACKed packets in a bigger ring (the bit of a lsn changes with the capacity)
+        long[] old = ackPack;
+        int oldCapacity = capacity();
+        ackPack = new long[wordsFor(size)];
+        for (int lsn = lowerBound; lsn - lowerBound < oldCapacity; lsn++) {
+            if ((old[(lsn >>> 6) & (old.length - 1)] & (1L << lsn)) != 0)
+                set(lsn);
+        }
     }
 
     /**
@@ -31,7 +80,7 @@ public class Window {
      * @return true if the packet can be send, false otherwise
      */
     public boolean canSend(int lsn) {
-        return lsn >= lowerBound && lsn <= upperBound && !ackPack.get(lsn - lowerBound);
+        return lsn >= lowerBound && lsn <= upperBound && !get(lsn);
     }
 
     /**
@@ -40,11 +89,11 @@ public class Window {
      * @return true if the packet was ACKed, false otherwise
      */
     public boolean alreadyAck(int lsn) {
-        // If the packet is over the size of the list, it wasn't ACKed
-        if (lsn >= lowerBound && lsn - lowerBound >= ackPack.size())
+        // If the packet is over the size of the ring, it wasn't ACKed
+        if (lsn >= lowerBound && lsn - lowerBound >= capacity())
             return false;
-        // It was ACKed if it's below the lower bound or its element in the window is to true
-        return lsn < lowerBound || ackPack.get(lsn - lowerBound);
+        // It was ACKed if it's below the lower bound or its bit in the ring is set
+        return lsn < lowerBound || get(lsn);
     }
 
     /**
@@ -52,33 +101,72 @@ public class Window {
      * @param lsn the packet lsn
      */
     public void markPacket(int lsn) {
-        ackPack.set(lsn - lowerBound, true);
+        if (lsn < lowerBound || lsn - lowerBound >= capacity())
+            return;
+        set(lsn);
         // Move the window
         moveWindow();
     }
 
+    /**
+     * Mark as ACKed all the packets up to cumAck and the ones set in the selective ACK bitmap above it
+     * The window is moved only once at the end
+     * @param cumAck every packet with lsn <= cumAck was received
+     * @param sack bit i is set if the packet with lsn cumAck + 1 + i was received
+     * @param newAcks filled with the lsns of the packets that were not ACKed before (room for capacity() lsns)
+     * @return the number of packets that were not ACKed before
+     */
+    public int markPackets(int cumAck, BitSet sack, int[] newAcks) {
+        int count = 0;
+        // Everything up to cumAck (packets below the lower bound were already ACKed)
+        for (int lsn = lowerBound; lsn <= cumAck && lsn - lowerBound < capacity(); lsn++) {
+            if (!get(lsn)) {
+                set(lsn);
+                newAcks[count++] = lsn;
+            }
+        }
+        // Packets received above cumAck
+        for (int i = sack.nextSetBit(0); i >= 0; i = sack.nextSetBit(i + 1)) {
+            int lsn = cumAck + 1 + i;
+            if (lsn - lowerBound >= capacity())
+                break;
+            if (!alreadyAck(lsn)) {
+                set(lsn);
+                newAcks[count++] = lsn;
+            }
+        }
+        // Move the window
+        moveWindow();
+        return count;
+    }
+
     /**
      * Move the window based on the number of ACKs received from the window start
+     * The ACKed packets are skipped (and their bits cleared for the next round of the ring) a word at a time
      */
     private void moveWindow() {
-        int numAck = 0;
-        // Count ACK from the left size
-        for (boolean mark: ackPack) {
-            if (mark)
-                numAck+=1;
-            else
+        int lsn = lowerBound;
+        int end = lowerBound + capacity();
+        while (lsn < end) {
+            int word = (lsn >>> 6) & (ackPack.length - 1);
+            int bit = lsn & 63;
+            // Not ACKed packets of the word from lsn on
+            long notAck = ~ackPack[word] >>> bit;
+            if (notAck != 0) {
+                // First not ACKed packet in this word: clear the ACKed ones before it and stop
+                int numAck = Long.numberOfTrailingZeros(notAck);
+                ackPack[word] &= ~(((1L << numAck) - 1) << bit);
+                lsn += numAck;
                 break;
+            }
+            // Every packet of the word from lsn on is ACKed: clear them and go to the next word
+            ackPack[word] &= (1L << bit) - 1;
+            lsn += 64 - bit;
         }
-        // If we have at least one ACK
-        if (numAck>=0) {
-            // Move window to the right
-            lowerBound += numAck;
-            upperBound += numAck;
-            // Clear the first portion of the list and add new non-ACKed packet on the right
-            ackPack.subList(0, numAck).clear();
-            for (int i = 0; i < numAck; i++)
-                ackPack.add(false);
-        }
+        // Move window to the right
+        int numAck = Math.min(lsn, end) - lowerBound;
+        lowerBound += numAck;
+        upperBound += numAck;
     }
 
     /**
@@ -87,20 +175,12 @@ public class Window {
      */
     public void increaseSize() {
         // If the window is bigger than the threshold increase by 1
-        if ((upperBound - lowerBound + 1)>=threshold) {
-            // If we are at the end of the list add a new packet with false
-            if (upperBound - lowerBound + 1 == ackPack.size())
-                ackPack.add(false);
+        if ((upperBound - lowerBound + 1)>=threshold)
             upperBound++; // Increase upperBound
-        }
-        else {
-            // Double the window
-            // Compute how many packets add in the end of the list
-            int toAdd = Math.max(2 * (upperBound - lowerBound + 1) - ackPack.size(), 0);
+        else
             upperBound += upperBound - lowerBound + 1; // Increase upperBound to get window size doubled
-            for (int i = 0; i < toAdd; i++) // Eventually add new packets
-                ackPack.add(false);
-        }
+        // Eventually grow the ring to keep track of the whole window
+        ensureCapacity(upperBound - lowerBound + 1);
     }
 
     /**
@@ -136,7 +216,7 @@ public class Window {
         return lowerBound == window.lowerBound &&
                 upperBound == window.upperBound &&
                 threshold == window.threshold &&
-                Objects.equals(ackPack, window.ackPack);
+                Arrays.equals(ackPack, window.ackPack);
     }
 
     /**
@@ -144,7 +224,9 @@ public class Window {
      */
     @Override
     public int hashCode() {
-        return Objects.hash(lowerBound, upperBound, ackPack, threshold);
+        int result = Objects.hash(lowerBound, upperBound, threshold);
+        result = 31 * result + Arrays.hashCode(ackPack);
+        return result;
     }
 
     /**
@@ -159,6 +241,20 @@ public class Window {
                 '}';
     }
 
+    /**
+     * @return size of the window (packets that can be in flight)
+     */
+    public int getSize() {
+        return upperBound - lowerBound + 1;
+    }
+
+    /**
+     * @return threshold of the window (it grows by 1 instead of doubling from here)
+     */
+    public int getThreshold() {
+        return threshold;
+    }
+
     /**
      * @return upperBound of the window
      */
@@ -8,8 +8,8 @@ import java.util.concurrent.LinkedBlockingQueue;
  */
 public class FIFO {
     private final UniformReliableBroadcast urb;
-    private final HashMap<Integer, HashSet<String>> pending = new HashMap<>(); // Messages not delivered yet by process
-    private final int[] seqNums; // Next lsn to deliver by process
+    // Messages not delivered yet by process, indexed by lsn (the buffer also keeps the next lsn to deliver)
+    private final HashMap<Integer, ReorderBuffer<String>> pending = new HashMap<>();
     private final LinkedBlockingQueue<String> messageToSendDown; // Messages to send to URB
     private final LinkedBlockingQueue<String> messageDeliveredDown; // Messages delivered from URB
     private final LinkedBlockingQueue<String> messageToDeliverUp; // Messages to deliver to Main
@@ -30,8 +30,8 @@ public class FIFO {
         this.messageDeliveredDown = new LinkedBlockingQueue<>();
         this.messageToSendDown = new LinkedBlockingQueue<>();
         this.urb = new UniformReliableBroadcast(hosts, id, messageToSendDown, messageDeliveredDown);
-        this.seqNums = new int[hosts.size()];
-        Arrays.fill(this.seqNums, 1);
+        for (Host h: hosts)
+            pending.put(h.getId(), new ReorderBuffer<>(1)); // First lsn to deliver
         // Start delivering
         receiveAndDeliver();
         // Start broadcasting
@@ -115,44 +115,22 @@ public class FIFO {
                 // Save from who we delivered something at URB (we check only these because we may deliver something)
                 HashSet<Integer> pids = new HashSet<>();
                 for (String gotPack: gotPacks) {
-                    // Get [pid, mess] array and add pid to pids and message to the pending of that pid
+                    // Get [pid, lsn] array and add pid to pids and message to the pending of that pid at its lsn
                     String[] gotSplit = gotPack.split(" ");
                     int pid = Integer.parseInt(gotSplit[0]);
                     pids.add(pid);
-                    HashSet<String> messages = pending.getOrDefault(pid, new HashSet<>());
-                    messages.add(gotPack);
-                    pending.put(pid, messages);
+                    pending.get(pid).put(Integer.parseInt(gotSplit[1]), gotPack);
                 }
                 // Cycle over the pids
                 for (int pid: pids) {
-                    // Save in this list all the message we can deliver in this round
+                    // Take out the contiguous run of messages starting from the next lsn we want to get
                     List<String> allDelivers = new LinkedList<>();
-                    HashSet<String> newMess = pending.get(pid);
-                    while (true) {
-                        // Check if we can deliver something from the pid
-                        // (i.e. we have a message with the correct lsn, lsn is always the second element)
-                        Optional<String> toDeliver = newMess.stream()
-                                .filter(x -> Integer.parseInt(x.split(" ")[1]) == seqNums[pid-1])
-                                .findFirst();
-                        // If we can't deliver anything anymore
-                        if(toDeliver.isEmpty()) {
-                            // If we can deliver at least 1 message
-                            if (allDelivers.size()!=0) {
-                                // Remove everything we have delivered from the pending
-                                newMess.removeAll(allDelivers);
-                                pending.put(pid, newMess);
-                                // Send the messages for delivery in the queue
-                                messageToDeliverUp.addAll(allDelivers);
-                            }
-                            break;
-                        }
-                        else {
-                            // If we can deliver the message, increase the lsn we want to get
-                            // and add the message to the ones will deliver
-                            seqNums[pid-1]+=1;
-                            allDelivers.add(toDeliver.get());
-                        }
-                    }
+                    String toDeliver;
+                    while ((toDeliver = pending.get(pid).poll()) != null)
+                        allDelivers.add(toDeliver);
+                    // If we can deliver at least 1 message, send the messages for delivery in the queue
+                    if (allDelivers.size()!=0)
+                        messageToDeliverUp.addAll(allDelivers);
                 }
             }
         }
@@ -177,7 +155,6 @@ public class FIFO {
         FIFO fifo = (FIFO) o;
         return Objects.equals(urb, fifo.urb) &&
                 Objects.equals(pending, fifo.pending) &&
-                Arrays.equals(seqNums, fifo.seqNums) &&
                 Objects.equals(messageToSendDown, fifo.messageToSendDown) &&
                 Objects.equals(messageDeliveredDown, fifo.messageDeliveredDown) &&
                 Objects.equals(messageToDeliverUp, fifo.messageToDeliverUp) &&
@@ -189,9 +166,7 @@ public class FIFO {
      */
     @Override
     public int hashCode() {
-        int result = Objects.hash(urb, pending, messageToSendDown,
+        return Objects.hash(urb, pending, messageToSendDown,
                 messageDeliveredDown, messageToDeliverUp, coordinator);
-        result = 31 * result + Arrays.hashCode(seqNums);
-        return result;
     }
 }